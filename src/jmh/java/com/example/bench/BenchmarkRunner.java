@@ -0,0 +1,29 @@
+package com.example.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Запуск всех бенчмарков с GC профайлером, чтобы вместе со временем видеть и аллокации на операцию.
+ * Аргументы — обычные аргументы JMH (фильтр по имени, -f, -wi, -i и т.д.), можно одной строкой.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        String[] jmhArgs = Arrays.stream(args)
+                .flatMap(arg -> Arrays.stream(arg.trim().split("\\s+")))
+                .filter(arg -> !arg.isEmpty())
+                .toArray(String[]::new);
+
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(jmhArgs))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.bench;
+
+import com.example.CrptApi;
+
+import java.util.List;
+
+final class Documents {
+    private Documents() {
+    }
+
+    static CrptApi.Product product(int index) {
+        return CrptApi.Product.builder()
+                .certificateDocument("string")
+                .certificateDocumentDate("2020-01-23")
+                .certificateDocumentNumber("string")
+                .ownerInn("string")
+                .producerInn("string")
+                .productionDate("2020-01-23")
+                .tnvedCode("string")
+                .uitCode("uit-" + index)
+                .uituCode("string")
+                .build();
+    }
+
+    static CrptApi.Document document(List<CrptApi.Product> products) {
+        return CrptApi.Document.builder()
+                .description(new CrptApi.Description("string"))
+                .docId("string")
+                .docStatus("string")
+                .docType("LP_INTRODUCE_GOODS")
+                .importRequest(true)
+                .ownerInn("string")
+                .participantInn("string")
+                .producerInn("string")
+                .productionDate("2020-01-23")
+                .productionType("string")
+                .products(products)
+                .regDate("2020-01-23")
+                .regNumber("string")
+                .build();
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.bench;
+
+import com.example.CrptApi;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полный путь post/postAsync против заглушки на com.sun.net.httpserver в том же процессе.
+ * Лимит высокий, поэтому измеряется накладной расход клиента: разрешение, сериализация, HTTP обмен.
+ * Количество товаров меняет размер тела, поэтому видно, как документ влияет на время и аллокации всего пути,
+ * включая сериализацию в буфер из пула (post) и в отдельный массив (postAsync).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlogback.configurationFile=logback-bench.xml", "-Dsun.net.httpserver.nodelay=true"})
+@Threads(8)
+public class PostBenchmark {
+    @Param({"1", "100"})
+    private int productCount;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private CrptApi api;
+    private CrptApi.Document document;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        CrptApi.Config.INSTANCE.setUrl("http://localhost:" + server.getAddress().getPort() + "/api/v3/lk/documents/create");
+        api = CrptApi.builder()
+                .requestLimit(1_000_000)
+                .strategy(CrptApi.Strategy.GCRA)
+                .burst(1_000_000)
+                .build();
+        List<CrptApi.Product> products = new ArrayList<>(productCount);
+        for (int i = 0; i < productCount; i++) {
+            products.add(Documents.product(i));
+        }
+        document = Documents.document(products);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int post() {
+        return api.post(document, "signature");
+    }
+
+    @Benchmark
+    public int postAsync() {
+        return api.postAsync(document, "signature").join();
+    }
+}
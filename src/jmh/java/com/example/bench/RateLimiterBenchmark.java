@@ -0,0 +1,52 @@
+package com.example.bench;
+
+import com.example.CrptApi;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость попытки получить разрешение под конкуренцией 1/8/64/256 потоков.
+ * Лимит высокий, чтобы измерялся сам путь получения, а не ожидание.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+    @Param({"FIXED_WINDOW", "SLIDING_LOG", "SLIDING_COUNTER", "TOKEN_BUCKET", "GCRA"})
+    private CrptApi.Strategy strategy;
+
+    private CrptApi.RateLimiter limiter;
+
+    @Setup
+    public void setUp() {
+        limiter = strategy.create(1_000_000, TimeUnit.MILLISECONDS.toNanos(10), 0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long tryAcquire1Thread() {
+        return limiter.tryAcquire(System.nanoTime(), 1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long tryAcquire8Threads() {
+        return limiter.tryAcquire(System.nanoTime(), 1);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public long tryAcquire64Threads() {
+        return limiter.tryAcquire(System.nanoTime(), 1);
+    }
+
+    @Benchmark
+    @Threads(256)
+    public long tryAcquire256Threads() {
+        return limiter.tryAcquire(System.nanoTime(), 1);
+    }
+}
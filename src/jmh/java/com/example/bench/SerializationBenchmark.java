@@ -0,0 +1,60 @@
+package com.example.bench;
+
+import com.example.CrptApi;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сериализация Document разными способами при разном количестве товаров: через String (как было раньше),
+ * в новый массив байт (асинхронный путь) и в переиспользуемый буфер (синхронный путь). ObjectWriter настроен
+ * так же, как в CrptApi; путь клиента целиком, с пулом буферов и сборкой запроса, измеряет PostBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"1", "100", "10000"})
+    private int productCount;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectWriter documentWriter = objectMapper.writerFor(CrptApi.Document.class);
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+    private CrptApi.Document document;
+
+    @Setup
+    public void setUp() {
+        List<CrptApi.Product> products = new ArrayList<>(productCount);
+        for (int i = 0; i < productCount; i++) {
+            products.add(Documents.product(i));
+        }
+        document = Documents.document(products);
+    }
+
+    @Benchmark
+    public byte[] stringThenUtf8() throws IOException {
+        return objectMapper.writeValueAsString(document).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeValueAsBytes() throws IOException {
+        return documentWriter.writeValueAsBytes(document);
+    }
+
+    @Benchmark
+    public int reusableBuffer() throws IOException {
+        buffer.reset();
+        documentWriter.writeValue(buffer, document);
+        return buffer.size();
+    }
+}
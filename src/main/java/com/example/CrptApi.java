@@ -1,39 +1,148 @@
 package com.example;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.ConnectException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
- * Для монитора и счетчика используются статические переменные. Все экземпляры класса будут мониторить одни данные.
- * Любой из экземпляров гарантированно не превысит лимит запросов за интервал времени.
+ * Ограничение запросов вынесено в стратегию {@link RateLimiter}, которая выбирается при создании экземпляра
+ * (см. {@link Strategy} и {@link ClientBuilder}). Каждый экземпляр гарантированно не превысит свой лимит запросов
+ * в пределах точности выбранной стратегии.
+ * По умолчанию состояние лимита принадлежит экземпляру. Режим {@link Scope#SHARED} делит его между всеми
+ * экземплярами JVM с одинаковыми настройками, а {@link LimitKey} дает отдельный лимит каждому ключу
+ * (токену, ИНН участника и т.п.). Между процессами лимит делится через {@link RateLimitStore}.
+ * Время ожидания разрешений, задержки HTTP и коды ответов передаются в {@link Metrics}
+ * (см. {@link LongAdderMetrics}), а события — в {@link EventSink}, по умолчанию асинхронно в лог.
  */
 
 @Slf4j
 public class CrptApi {
-    private static final String URL = Config.INSTANCE.getUrl();
-    private static final String AUTH_TOKEN = Config.INSTANCE.getAuthToken();
-    private static final Object lock = new Object();
-    private static long intervalStartMs = System.currentTimeMillis();
-    private static int requestCount = 0;
+    private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final long NOT_SCHEDULED = Long.MIN_VALUE;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    /**
+     * Синтетический код: запрос не отправлен, потому что разрешение не получено до дедлайна. Не повторяется.
+     */
+    public static final int STATUS_PERMIT_TIMEOUT = 408;
+    /**
+     * Внутренний код для общего future в {@link ResultCache}: запрос не отправлен (дедлайн или прерывание),
+     * присоединившиеся вызовы должны отправить его сами.
+     */
+    private static final int STATUS_NOT_SENT = -1;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    private static final BufferPool BUFFERS = new BufferPool(4 * Runtime.getRuntime().availableProcessors(), 1 << 20);
+    private static final RateLimiterRegistry SHARED_LIMITERS = new RateLimiterRegistry(TimeUnit.MINUTES.toNanos(1));
 
-    private final int requestLimit;
-    private final long requestIntervalMs;
+    private final RateLimiter rateLimiter;
+    private final RateLimiterRegistry limiters;
+    private final Function<String, RateLimiter> limiterFactory;
+    private final LimitKey limitKey;
+    private final LimitKey flowKey;
+    private final ToIntFunction<String> flowWeight;
+    private final String keyPrefix;
+    private final long idleKeyTimeoutNanos;
     private final HttpClient client;
+    private final HttpRequest.Builder requestTemplate;
+    private final Supplier<String> authToken;
     private final ObjectMapper objectMapper;
+    private final ObjectWriter documentWriter;
+    private final ObjectWriter productWriter;
+    private final Map<String, WaiterQueue> waiters = new ConcurrentHashMap<>();
+    private final AtomicLong nextDrainAt = new AtomicLong(NOT_SCHEDULED);
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final Metrics metrics;
+    private final EventSink events;
+    private final RetryPolicy retryPolicy;
+    private final int requestLimit;
+    private final boolean adaptive;
+    private final ResultCache resultCache;
+    private final Outbox outbox;
+    private final BiConsumer<Document, Integer> outboxListener;
+    private final AtomicInteger outboxInFlight = new AtomicInteger();
+    private final AtomicBoolean outboxDrainScheduled = new AtomicBoolean();
 
     public CrptApi(TimeUnit timeUnit, int requestLimit) {
         this(timeUnit, 1, requestLimit);
@@ -44,105 +153,3864 @@ public class CrptApi {
     }
 
     public CrptApi(TimeUnit timeUnit, int timeValue, int requestLimit) {
-        if (timeValue <= 0 || requestLimit <= 0) {
+        this(builder().interval(timeUnit, timeValue).requestLimit(requestLimit));
+    }
+
+    private CrptApi(ClientBuilder builder) {
+        if (builder.timeValue <= 0 || builder.requestLimit <= 0) {
             throw new IllegalArgumentException(String.format("The values for timeValue and requestLimit must be positive. " +
-                    "But was received — timeValue: %d, requestLimit: %d", timeValue, requestLimit));
+                    "But was received — timeValue: %d, requestLimit: %d", builder.timeValue, builder.requestLimit));
+        }
+        if (builder.burst < 0) {
+            throw new IllegalArgumentException("The burst must not be negative. But was received: " + builder.burst);
+        }
+        if (builder.rateLimiter != null && (builder.scope != Scope.INSTANCE || builder.limitKey != LimitKey.NONE)) {
+            throw new IllegalArgumentException("A custom rateLimiter is already a single shared state " +
+                    "and cannot be combined with the SHARED scope or a limitKey");
+        }
+        if (builder.store != null && (builder.rateLimiter != null || builder.maxRequestLimit != 0)) {
+            throw new IllegalArgumentException("A rate limit store cannot be combined with a custom rateLimiter " +
+                    "or the adaptive mode");
+        }
+        if (builder.httpClient != null
+                && (builder.httpVersion != null || builder.connectTimeout != null || builder.httpExecutor != null)) {
+            throw new IllegalArgumentException("A shared httpClient is already configured, httpVersion, " +
+                    "connectTimeout and httpExecutor cannot be applied to it");
+        }
+        if (builder.maxRequestLimit != 0 && builder.maxRequestLimit < builder.requestLimit) {
+            throw new IllegalArgumentException(String.format("The adaptive ceiling must not be less than requestLimit. " +
+                    "But was received — ceiling: %d, requestLimit: %d", builder.maxRequestLimit, builder.requestLimit));
+        }
+        this.metrics = builder.metrics;
+        this.events = builder.events != null ? builder.events : DefaultEvents.INSTANCE;
+        this.requestLimit = builder.requestLimit;
+        this.adaptive = builder.rateLimiter == null && builder.maxRequestLimit > 0;
+        long intervalNanos = builder.timeUnit.toNanos(builder.timeValue);
+        if (builder.rateLimiter != null) {
+            this.limiterFactory = key -> builder.rateLimiter;
+        } else if (adaptive) {
+            // Лимитер может быть общим (Scope.SHARED), поэтому изменения лимита сообщает клиент, чей ответ их вызвал
+            this.limiterFactory = key -> new AdaptiveRateLimiter(builder.requestLimit, builder.maxRequestLimit,
+                    intervalNanos, builder.burst > 0 ? builder.burst : 1, limit -> { });
+        } else if (builder.store != null) {
+            // Ключ в хранилище — это ключ лимита с префиксом настроек, одинаковый во всех процессах
+            int leaseSize = builder.leaseSize > 0 ? builder.leaseSize : Math.max(1, builder.requestLimit / 10);
+            this.limiterFactory = key -> new StoreRateLimiter(builder.store, key, builder.requestLimit,
+                    intervalNanos, builder.burst > 0 ? builder.burst : 1, leaseSize);
+        } else {
+            this.limiterFactory = key -> builder.strategy.create(builder.requestLimit, intervalNanos, builder.burst);
+        }
+        this.limitKey = builder.limitKey;
+        this.flowKey = builder.flowKey;
+        this.flowWeight = builder.flowWeight;
+        this.idleKeyTimeoutNanos = Math.max(builder.idleKeyTimeout.toNanos(), intervalNanos);
+        if (builder.scope == Scope.SHARED) {
+            this.rateLimiter = null;
+            this.limiters = SHARED_LIMITERS;
+            String mode = adaptive ? "ADAPTIVE:" + builder.maxRequestLimit
+                    : builder.store != null ? "STORE"
+                    : builder.strategy.name();
+            this.keyPrefix = String.format("%s:%d/%d:%d|", mode, builder.requestLimit, intervalNanos, builder.burst);
+        } else {
+            this.keyPrefix = builder.store != null
+                    ? String.format("STORE:%d/%d:%d|", builder.requestLimit, intervalNanos, builder.burst)
+                    : "";
+            if (builder.limitKey != LimitKey.NONE) {
+                this.rateLimiter = null;
+                this.limiters = new RateLimiterRegistry(idleKeyTimeoutNanos);
+            } else {
+                this.rateLimiter = limiterFactory.apply(keyPrefix);
+                this.limiters = null;
+            }
         }
-        this.requestLimit = requestLimit;
-        this.requestIntervalMs = timeUnit.toMillis(timeValue);
         this.objectMapper = new ObjectMapper();
-        this.client = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(5))
-                .build();
-        log.info("Client {} instanced\n", CrptApi.class.getSimpleName());
+        this.documentWriter = objectMapper.writerFor(Document.class);
+        this.productWriter = objectMapper.writerFor(Product.class);
+        if (builder.httpClient != null) {
+            this.client = builder.httpClient;
+        } else if (builder.httpVersion == null && builder.connectTimeout == null && builder.httpExecutor == null) {
+            this.client = DefaultHttpClient.INSTANCE;
+        } else {
+            this.client = newHttpClient(
+                    builder.httpVersion != null ? builder.httpVersion : HttpClient.Version.HTTP_2,
+                    builder.connectTimeout != null ? builder.connectTimeout : DEFAULT_CONNECT_TIMEOUT,
+                    builder.httpExecutor);
+        }
+        this.requestTemplate = HttpRequest.newBuilder()
+                .uri(URI.create(builder.url != null ? builder.url : Config.INSTANCE.getUrl()))
+                .header("Content-Type", "application/json")
+                .timeout(builder.requestTimeout);
+        this.authToken = builder.authToken != null ? builder.authToken : Config.INSTANCE::getAuthToken;
+        this.scheduler = SharedScheduler.INSTANCE;
+        this.executor = builder.executor;
+        this.retryPolicy = builder.retryPolicy;
+        this.resultCache = builder.resultCache;
+        this.outbox = builder.outbox;
+        this.outboxListener = builder.outboxListener;
+        if (outbox != null) {
+            // Записи, оставшиеся от прошлого запуска
+            scheduleOutboxDrain();
+        }
+        log.info("Client {} instanced", CrptApi.class.getSimpleName());
+    }
+
+    public static ClientBuilder builder() {
+        return new ClientBuilder();
+    }
+
+    private static HttpClient newHttpClient(HttpClient.Version version, Duration connectTimeout, Executor executor) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout);
+        if (executor != null) {
+            builder.executor(executor);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Один поток-демон на все экземпляры: клиент не владеет потоками, поэтому его не нужно закрывать.
+     * Задачи планировщика короткие (выдача разрешений, таймеры), сериализация и отправка выполняются вне его.
+     * Отмененные таймеры удаляются из очереди сразу, а не дожидаются своего времени.
+     */
+    private static final class SharedScheduler {
+        static final ScheduledExecutorService INSTANCE = newScheduler();
+
+        private static ScheduledExecutorService newScheduler() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "crpt-api-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    /**
+     * Приемник событий по умолчанию. Его поток-потребитель стартует при первом клиенте без своего приемника,
+     * а не при загрузке класса.
+     */
+    private static final class DefaultEvents {
+        static final EventSink INSTANCE = new AsyncEventSink(new LoggingEventSink(), 8192);
+    }
+
+    /**
+     * Клиент по умолчанию общий для всех экземпляров CrptApi, поэтому они делят пул соединений
+     * (а по HTTP/2 — одно мультиплексированное соединение). Создается при первом обращении.
+     */
+    private static final class DefaultHttpClient {
+        static final HttpClient INSTANCE = newHttpClient(HttpClient.Version.HTTP_2, DEFAULT_CONNECT_TIMEOUT, null);
+    }
+
+    /**
+     * Executor, запускающий каждую задачу в новом виртуальном потоке. Доступен с Java 21; класс собирается
+     * под 17, поэтому фабрика ищется через reflection.
+     *
+     * @throws UnsupportedOperationException если JVM не поддерживает виртуальные потоки
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer, current version: "
+                    + Runtime.version());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create a virtual thread executor", e);
+        }
     }
 
+    /**
+     * Повторы по {@link RetryPolicy} выполняются здесь же: каждый повтор ждет паузу и затем получает разрешение
+     * у лимита наравне с новыми запросами. Возвращается код последней попытки.
+     */
     public int post(Document document, String signature) {
-        synchronized (lock) {
-            long currentTime;
-            while (true) {
-                currentTime = System.currentTimeMillis();
+        return post(document, signature, Priority.NORMAL, null);
+    }
+
+    public int post(Document document, String signature, Priority priority) {
+        return post(document, signature, priority, null);
+    }
 
-                if (currentTime - intervalStartMs >= requestIntervalMs) {
-                    intervalStartMs = currentTime;
-                    requestCount = 0;
-                    log.debug("Counter reset\n");
+    /**
+     * Когда лимит исчерпан, вызов встает в очередь ожидающих своего ключа: сначала обслуживаются более
+     * приоритетные классы, внутри класса потоки (см. {@link ClientBuilder#fairness(LimitKey)}) чередуются.
+     *
+     * @param timeout сколько ждать разрешения (null — без ограничения); по истечении возвращается
+     *                {@link #STATUS_PERMIT_TIMEOUT}, запрос не отправляется
+     */
+    public int post(Document document, String signature, Priority priority, Duration timeout) {
+        long deadlineNanos = deadlineOf(timeout);
+        String cacheKey = resultCache != null ? resultCache.keyOf(document) : null;
+        while (true) {
+            CompletableFuture<Integer> result = null;
+            if (cacheKey != null) {
+                result = new CompletableFuture<>();
+                CompletableFuture<Integer> cached = resultCache.claim(cacheKey, result);
+                if (cached != null) {
+                    int statusCode = await(cached, deadlineNanos);
+                    if (statusCode != STATUS_NOT_SENT) {
+                        return statusCode;
+                    }
+                    continue;
                 }
+            }
+            return postOnce(document, signature, priority, deadlineNanos, result);
+        }
+    }
 
-                if (requestCount >= requestLimit) {
-                    long waitTimeMs = requestIntervalMs - (currentTime - intervalStartMs);
-                    long totalSeconds = TimeUnit.MILLISECONDS.toSeconds(waitTimeMs);
-                    log.info("Please wait for {} min {} sec {} ms (total ms: {})\n",
-                            (totalSeconds / 60), (totalSeconds % 60), (waitTimeMs % 1000), waitTimeMs);
-                    if (waitTimeMs > 0) {
-                        try {
-                            lock.wait(waitTimeMs); //Если не хотите освобождать монитор, замените на Thread.sleep(waitTimeMs);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
+    /**
+     * Ожидание результата чужого запроса того же документа. Дедлайн здесь ограничивает ожидание результата,
+     * а не разрешения.
+     */
+    private static int await(CompletableFuture<Integer> result, long deadlineNanos) {
+        try {
+            return deadlineNanos == NO_DEADLINE
+                    ? result.get()
+                    : result.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return STATUS_PERMIT_TIMEOUT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 500;
+        } catch (ExecutionException e) {
+            return statusOf(unwrap(e.getCause()));
+        }
+    }
+
+    /**
+     * @param result общий future в {@link ResultCache} или null
+     */
+    private int postOnce(Document document, String signature, Priority priority, long deadlineNanos,
+                         CompletableFuture<Integer> result) {
+        String key = keyOf(document);
+        Ticket ticket = new Ticket(priority, flowOf(document), deadlineNanos);
+        int statusCode = acquirePermit(key, ticket);
+        if (statusCode != 0) {
+            if (result != null) {
+                result.complete(STATUS_NOT_SENT);
+            }
+            return statusCode;
+        }
+        try {
+            statusCode = send(document, signature, key, ticket);
+        } catch (RuntimeException e) {
+            if (result != null) {
+                result.completeExceptionally(e);
+            }
+            throw e;
+        }
+        if (result != null) {
+            result.complete(statusCode);
+        }
+        return statusCode;
+    }
+
+    /**
+     * Отправка документа с очень большим списком товаров. Поле products документа игнорируется, товары берутся
+     * из итератора по мере того, как HTTP клиент запрашивает очередные части тела запроса, поэтому в памяти
+     * одновременно находится порядка STREAM_CHUNK_SIZE байт, а не весь документ.
+     * Тело нельзя отправить повторно, поэтому источник товаров читается ровно один раз и повторов нет.
+     */
+    public int postStreaming(Document document, Iterator<Product> products, String signature) {
+        String key = keyOf(document);
+        int statusCode = acquirePermit(key, new Ticket(Priority.NORMAL, flowOf(document), NO_DEADLINE));
+        if (statusCode != 0) {
+            return statusCode;
+        }
+        return execute(buildRequest(new ProductStreamPublisher(document, products), signature), key).statusCode;
+    }
+
+    public int postStreaming(Document document, Stream<Product> products, String signature) {
+        try (Stream<Product> source = products) {
+            return postStreaming(document, source.iterator(), signature);
+        }
+    }
+
+    /**
+     * Неблокирующий вариант post. При исчерпании лимита вызов не занимает поток, а ставится в очередь,
+     * которую планировщик разбирает по мере освобождения разрешений.
+     * Коды статусов те же, что и у post (в т.ч. 504/502/503 при ошибках отправки).
+     * Повтор планируется в потоке планировщика и после паузы снова встает в очередь за разрешением.
+     */
+    public CompletableFuture<Integer> postAsync(Document document, String signature) {
+        return postAsync(document, signature, Priority.NORMAL, null);
+    }
+
+    /**
+     * Очередь та же, что у {@link #post(Document, String, Priority, Duration)}. Если до истечения timeout
+     * разрешение не получено, future завершается кодом {@link #STATUS_PERMIT_TIMEOUT}, а если не получено
+     * разрешение на повтор — кодом последней попытки.
+     */
+    public CompletableFuture<Integer> postAsync(Document document, String signature, Priority priority,
+                                                Duration timeout) {
+        return postAsync(document, signature, priority, deadlineOf(timeout));
+    }
+
+    /**
+     * Вызывающий всегда получает производный future, поэтому не может отменить или завершить общий.
+     */
+    private CompletableFuture<Integer> postAsync(Document document, String signature, Priority priority,
+                                                 long deadlineNanos) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        String cacheKey = resultCache != null ? resultCache.keyOf(document) : null;
+        if (cacheKey != null) {
+            CompletableFuture<Integer> cached = resultCache.claim(cacheKey, result);
+            if (cached != null) {
+                CompletableFuture<Integer> joined = cached.thenCompose(statusCode -> statusCode == STATUS_NOT_SENT
+                        ? postAsync(document, signature, priority, deadlineNanos)
+                        : CompletableFuture.completedFuture(statusCode));
+                return deadlineNanos == NO_DEADLINE ? joined : joined.completeOnTimeout(STATUS_PERMIT_TIMEOUT,
+                        Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        }
+        AsyncWaiter waiter = new AsyncWaiter(new Ticket(priority, flowOf(document), deadlineNanos),
+                document, signature, 0, result);
+        enqueue(waiter);
+        return result.thenApply(statusCode -> statusCode == STATUS_NOT_SENT ? STATUS_PERMIT_TIMEOUT : statusCode);
+    }
+
+    private void enqueue(AsyncWaiter waiter) {
+        String key = keyOf(waiter.document);
+        if (!waiters.containsKey(key) && tryAcquirePermit(key) == 0) {
+            metrics.permitGranted(0);
+            dispatch(waiter);
+            return;
+        }
+        metrics.permitDenied();
+        if (waiter.ticket.deadlineNanos != NO_DEADLINE && waiter.ticket.deadlineNanos - System.nanoTime() <= 0) {
+            waiter.result.complete(waiter.previousStatusCode);
+            return;
+        }
+        if (waiter.ticket.deadlineNanos != NO_DEADLINE) {
+            waiter.deadlineTimer = scheduler.schedule(() -> {
+                if (waiter.cancel()) {
+                    permitTimedOut(key, waiter.ticket);
+                    // У повтора запрос уже был отправлен, поэтому результат — код предыдущей попытки
+                    waiter.result.complete(waiter.previousStatusCode);
+                }
+            }, waiter.ticket.deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        addWaiter(key, waiter);
+    }
+
+    private void addWaiter(String key, Waiter waiter) {
+        waiters.compute(key, (k, queue) -> {
+            WaiterQueue result = queue != null ? queue : new WaiterQueue();
+            result.add(waiter, flowWeight);
+            return result;
+        });
+        scheduleDrain(0);
+    }
+
+    /**
+     * Записывает документ в {@link Outbox} (см. {@link ClientBuilder#outbox(Outbox, BiConsumer)}) и сразу возвращается.
+     * Журнал разбирается в общем ForkJoinPool с допустимой частотой через ту же очередь, что и postAsync, не более
+     * DEFAULT_MAX_IN_FLIGHT запросов одновременно; в теле запроса отправляется JSON, сохраненный в журнале.
+     * Окончательный код (после повторов) передается в listener, после чего запись
+     * подтверждается. Документ, записанный до сбоя, но не подтвержденный, отправляется повторно.
+     */
+    public void postDurable(Document document, String signature) {
+        if (outbox == null) {
+            throw new IllegalStateException("The outbox is not configured, use ClientBuilder.outbox()");
+        }
+        outbox.append(encodeOutboxRecord(document, signature));
+        scheduleOutboxDrain();
+    }
+
+    /**
+     * Одновременно запланировано не больше одного разбора. Флаг сбрасывается до чтения журнала, поэтому запись,
+     * добавленная во время разбора, либо будет им прочитана, либо запланирует следующий.
+     */
+    private void scheduleOutboxDrain() {
+        if (outboxDrainScheduled.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(this::drainOutbox);
+        }
+    }
+
+    /**
+     * Счетчик outboxInFlight занимается до чтения записи, поэтому после неудачной попытки журнал проверяется
+     * снова: запись, добавленная в этот момент, могла не найти свободного места.
+     */
+    private void drainOutbox() {
+        outboxDrainScheduled.set(false);
+        while (outbox.size() > 0) {
+            if (outboxInFlight.incrementAndGet() > DEFAULT_MAX_IN_FLIGHT) {
+                outboxInFlight.decrementAndGet();
+                return;
+            }
+            Outbox.Entry entry = outbox.poll();
+            if (entry == null) {
+                outboxInFlight.decrementAndGet();
+                continue;
+            }
+            sendFromOutbox(entry);
+        }
+    }
+
+    /**
+     * Документ читается из записи только ради ключей лимита и listener, в запрос уходят сохраненные байты JSON.
+     */
+    private void sendFromOutbox(Outbox.Entry entry) {
+        ByteBuffer record = ByteBuffer.wrap(entry.data);
+        String signature;
+        Document document;
+        HttpRequest.BodyPublisher body;
+        try {
+            byte[] signatureBytes = new byte[record.getInt()];
+            record.get(signatureBytes);
+            signature = new String(signatureBytes, StandardCharsets.UTF_8);
+            document = objectMapper.readValue(entry.data, record.position(), record.remaining(), Document.class);
+            body = HttpRequest.BodyPublishers.ofByteArray(entry.data, record.position(), record.remaining());
+        } catch (IOException | RuntimeException e) {
+            log.error("The outbox record at {} is unreadable and was skipped: {}", entry.position, e.toString());
+            outbox.acknowledge(entry);
+            outboxInFlight.decrementAndGet();
+            return;
+        }
+        AsyncWaiter waiter = new AsyncWaiter(new Ticket(Priority.NORMAL, flowOf(document), NO_DEADLINE),
+                document, body, signature, new CompletableFuture<>());
+        enqueue(waiter);
+        waiter.result
+                .exceptionally(e -> statusOf(unwrap(e)))
+                .thenAccept(statusCode -> {
+                    try {
+                        outboxListener.accept(document, statusCode);
+                    } catch (RuntimeException e) {
+                        log.error("Outbox listener failed: {}", e.getMessage());
+                    }
+                    outbox.acknowledge(entry);
+                    outboxInFlight.decrementAndGet();
+                    scheduleOutboxDrain();
+                });
+    }
+
+    /**
+     * Формат: [длина подписи, подпись в UTF-8, документ в JSON].
+     */
+    private byte[] encodeOutboxRecord(Document document, String signature) {
+        byte[] signatureBytes = signature.getBytes(StandardCharsets.UTF_8);
+        byte[] documentBytes;
+        try {
+            documentBytes = documentWriter.writeValueAsBytes(document);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.allocate(Integer.BYTES + signatureBytes.length + documentBytes.length)
+                .putInt(signatureBytes.length)
+                .put(signatureBytes)
+                .put(documentBytes)
+                .array();
+    }
+
+    public CompletableFuture<Void> postAll(Collection<Document> documents, String signature,
+                                           BiConsumer<Document, Integer> listener) {
+        return postAll(documents, signature, DEFAULT_MAX_IN_FLIGHT, listener);
+    }
+
+    /**
+     * Пакетная отправка. Разрешения берутся пачками (до maxInFlight и не больше емкости стратегии),
+     * следующая пачка бронируется, пока текущая еще отправляется, документы сериализуются параллельно
+     * в общем ForkJoinPool, а одновременно выполняется не более maxInFlight запросов.
+     * Результат по каждому документу передается в listener по мере готовности (ошибка сериализации — 500),
+     * возвращаемый future завершается после обработки всех документов.
+     */
+    public CompletableFuture<Void> postAll(Collection<Document> documents, String signature, int maxInFlight,
+                                           BiConsumer<Document, Integer> listener) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The maxInFlight must be positive. But was received: " + maxInFlight);
+        }
+        BatchSubmission batch = new BatchSubmission(documents.iterator(), signature, maxInFlight, listener);
+        batch.pump();
+        return batch.completion;
+    }
+
+    /**
+     * Выполняет post в executor, заданном при создании (например, {@link ClientBuilder#virtualThreads()}).
+     * Ожидание разрешения построено на LockSupport.parkNanos, поэтому виртуальный поток
+     * не закрепляется за потоком-носителем.
+     */
+    public CompletableFuture<Integer> submit(Document document, String signature) {
+        if (executor == null) {
+            throw new IllegalStateException("The executor is not configured, use ClientBuilder.executor() " +
+                    "or ClientBuilder.virtualThreads()");
+        }
+        return CompletableFuture.supplyAsync(() -> post(document, signature), executor);
+    }
+
+    /**
+     * Берет разрешение, только если оно доступно сразу и никто не ждет его в очереди. Разрешение расходуется
+     * на запрос, который вызывающий выполняет сам; для отправки документа см. {@link #tryPost(Document, String)}.
+     * Для клиента с {@link LimitKey} относится к ключу без значения, см. {@link #tryAcquire(Document, Duration)}.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(Duration.ZERO);
+    }
+
+    /**
+     * Ждет разрешения не дольше timeout в общей очереди с приоритетом NORMAL. Прерывание потока завершает
+     * ожидание с false, флаг прерывания сохраняется.
+     */
+    public boolean tryAcquire(Duration timeout) {
+        return tryAcquire(keyPrefix, timeout);
+    }
+
+    /**
+     * Разрешение для ключа, к которому относится документ.
+     */
+    public boolean tryAcquire(Document document, Duration timeout) {
+        return tryAcquire(keyOf(document), timeout);
+    }
+
+    private boolean tryAcquire(String key, Duration timeout) {
+        return acquirePermit(key, new Ticket(Priority.NORMAL, "", deadlineOf(timeout))) == 0;
+    }
+
+    /**
+     * Безусловно бронирует permits разрешений, возможно в будущем, минуя очередь ожидающих.
+     *
+     * @return через сколько забронированные разрешения можно использовать (ZERO — сразу)
+     * @throws UnsupportedOperationException если собственная стратегия ({@link ClientBuilder#rateLimiter(RateLimiter)})
+     *                                       не поддерживает бронирование; встроенные поддерживают все
+     */
+    public Duration reserve(int permits) {
+        return reserve(keyPrefix, permits);
+    }
+
+    public Duration reserve(Document document, int permits) {
+        return reserve(keyOf(document), permits);
+    }
+
+    /**
+     * Больше capacity за раз стратегия не выдает, поэтому бронь идет пачками подряд.
+     */
+    private Duration reserve(String key, int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("The number of permits must be positive. But was received: " + permits);
+        }
+        long now = System.nanoTime();
+        RateLimiter limiter = limiterFor(key, now);
+        long waitTimeNanos = 0;
+        for (int remaining = permits; remaining > 0; ) {
+            int chunk = Math.min(remaining, limiter.capacity());
+            waitTimeNanos = limiter.reserve(now, chunk);
+            for (int i = 0; i < chunk; i++) {
+                metrics.permitGranted(waitTimeNanos);
+            }
+            remaining -= chunk;
+        }
+        return Duration.ofNanos(waitTimeNanos);
+    }
+
+    /**
+     * Сколько разрешений доступно прямо сейчас (0, если у ключа есть ожидающие). Только оценка:
+     * к моменту следующего вызова значение может измениться.
+     */
+    public int availablePermits() {
+        return availablePermits(keyPrefix);
+    }
+
+    public int availablePermits(Document document) {
+        return availablePermits(keyOf(document));
+    }
+
+    private int availablePermits(String key) {
+        if (waiters.containsKey(key)) {
+            return 0;
+        }
+        return limiterFor(key, System.nanoTime()).availablePermits(System.nanoTime());
+    }
+
+    /**
+     * Отправляет документ, только если разрешение доступно сразу, иначе возвращает {@link #STATUS_PERMIT_TIMEOUT},
+     * не блокируясь и не отправляя запрос.
+     */
+    public int tryPost(Document document, String signature) {
+        return tryPost(document, signature, Duration.ZERO);
+    }
+
+    /**
+     * То же, что {@link #post(Document, String, Priority, Duration)} с приоритетом NORMAL. Повторы
+     * по {@link RetryPolicy} тоже получают разрешение не позже дедлайна, иначе возвращается код последней попытки.
+     */
+    public int tryPost(Document document, String signature, Duration timeout) {
+        return post(document, signature, Priority.NORMAL, timeout);
+    }
+
+    /**
+     * Текущий лимит запросов за интервал. В адаптивном режиме ({@link ClientBuilder#adaptive(int)}) меняется
+     * по ответам сервера, иначе равен requestLimit. Для клиента с {@link LimitKey} см. {@link #effectiveLimit(Document)}.
+     */
+    public double effectiveLimit() {
+        return effectiveLimit(keyPrefix);
+    }
+
+    /**
+     * Текущий лимит для ключа, к которому относится документ.
+     */
+    public double effectiveLimit(Document document) {
+        return effectiveLimit(keyOf(document));
+    }
+
+    private double effectiveLimit(String key) {
+        AdaptiveRateLimiter limiter = adaptiveLimiter(key);
+        return limiter != null ? limiter.effectiveLimit() : requestLimit;
+    }
+
+    private AdaptiveRateLimiter adaptiveLimiter(String key) {
+        RateLimiter limiter = limiterFor(key, System.nanoTime());
+        if (limiter instanceof KeyedRateLimiter) {
+            limiter = ((KeyedRateLimiter) limiter).delegate;
+        }
+        return limiter instanceof AdaptiveRateLimiter ? (AdaptiveRateLimiter) limiter : null;
+    }
+
+    private void limitChanged(double limit) {
+        metrics.limitChanged(limit);
+        events.onEvent(EventType.LIMIT_CHANGED, null, (int) limit, 0, null);
+    }
+
+    private String keyOf(Document document) {
+        String key = limitKey.of(document, authToken.get());
+        return keyPrefix + (key != null ? key : "");
+    }
+
+    private String flowOf(Document document) {
+        String flow = flowKey.of(document, authToken.get());
+        return flow != null ? flow : "";
+    }
+
+    private static long deadlineOf(Duration timeout) {
+        return timeout == null ? NO_DEADLINE : System.nanoTime() + Math.max(0, timeout.toNanos());
+    }
+
+    private RateLimiter limiterFor(String key, long nowNanos) {
+        return limiters != null ? limiters.limiter(key, nowNanos, idleKeyTimeoutNanos, limiterFactory) : rateLimiter;
+    }
+
+    /**
+     * Разрешение получается без блокировок (CAS в стратегии), сам запрос выполняется уже после него,
+     * поэтому одновременно "в полете" может быть до requestLimit запросов.
+     * Если лимит исчерпан или у ключа уже есть ожидающие, поток встает в очередь ожидающих и паркуется,
+     * пока планировщик не передаст ему разрешение, не наступит дедлайн или поток не прервут.
+     * Если по оценке лимита разрешение не успеет освободиться до дедлайна, вызов завершается сразу, не вставая в очередь.
+     * Свободное разрешение выдается и при уже наступившем дедлайне, поэтому нулевой timeout означает одну попытку.
+     *
+     * @return 0, если разрешение получено, иначе код результата (500 — прерывание, 408 — дедлайн)
+     */
+    private int acquirePermit(String key, Ticket ticket) {
+        long waitTimeNanos = 0;
+        if (!waiters.containsKey(key)) {
+            waitTimeNanos = tryAcquirePermit(key);
+            if (waitTimeNanos == 0) {
+                metrics.permitGranted(0);
+                return 0;
+            }
+        }
+        metrics.permitDenied();
+        if (ticket.deadlineNanos != NO_DEADLINE && waitTimeNanos >= ticket.deadlineNanos - System.nanoTime()) {
+            return STATUS_PERMIT_TIMEOUT;
+        }
+        ThreadWaiter waiter = new ThreadWaiter(ticket);
+        events.onEvent(EventType.PERMIT_WAIT, key, 0, waitTimeNanos, null);
+        addWaiter(key, waiter);
+        while (!waiter.isGranted()) {
+            if (ticket.deadlineNanos == NO_DEADLINE) {
+                LockSupport.park(this);
+            } else {
+                long remainingNanos = ticket.deadlineNanos - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    if (waiter.cancel()) {
+                        permitTimedOut(key, ticket);
+                        return STATUS_PERMIT_TIMEOUT;
                     }
-                } else {
                     break;
                 }
+                LockSupport.parkNanos(this, remainingNanos);
+            }
+            if (Thread.currentThread().isInterrupted() && waiter.cancel()) {
+                events.onEvent(EventType.PERMIT_INTERRUPTED, key, 0, 0, null);
+                return 500;
             }
+        }
+        return 0;
+    }
 
-            int statusCode = 500;
-            URI uri = URI.create(URL);
-            String jsonStr;
-            try {
-                jsonStr = objectMapper.writeValueAsString(document);
-            } catch (JsonProcessingException e) {
-                log.error("The request was not sent: {}.\n\tSerialization error on the object: {}", e, document);
-                throw new RuntimeException(e);
+    private void permitGranted(long requestedAtNanos) {
+        metrics.permitGranted(System.nanoTime() - requestedAtNanos);
+    }
+
+    private void permitTimedOut(String key, Ticket ticket) {
+        events.onEvent(EventType.PERMIT_TIMEOUT, key, STATUS_PERMIT_TIMEOUT, System.nanoTime() - ticket.enqueuedAt, null);
+    }
+
+    /**
+     * Пауза перед повтором.
+     */
+    private boolean awaitDeadline(String key, long deadlineNanos) {
+        long remainingNanos;
+        while ((remainingNanos = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNanos);
+            if (Thread.currentThread().isInterrupted()) {
+                events.onEvent(EventType.PERMIT_INTERRUPTED, key, 0, remainingNanos, null);
+                return false;
             }
+        }
+        return true;
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(uri)
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonStr))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", AUTH_TOKEN)
-                    .header("Signature", signature)
-                    .timeout(Duration.ofSeconds(10))
-                    .build();
+    /**
+     * @return 0, если разрешение выдано, иначе сколько наносекунд ждать до следующей попытки
+     */
+    private long tryAcquirePermit(String key) {
+        long now = System.nanoTime();
+        return limiterFor(key, now).tryAcquire(now, 1);
+    }
 
-            try {
-                log.debug("Trying to send request to {}", uri);
-                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    /**
+     * Планирует разбор очереди, если он еще не запланирован на более раннее время.
+     */
+    private void scheduleDrain(long delayNanos) {
+        long drainAt = System.nanoTime() + delayNanos;
+        long scheduledAt;
+        do {
+            scheduledAt = nextDrainAt.get();
+            if (scheduledAt != NOT_SCHEDULED && scheduledAt - drainAt <= 0) {
+                return;
+            }
+        } while (!nextDrainAt.compareAndSet(scheduledAt, drainAt));
+        scheduler.schedule(this::drainPending, delayNanos, TimeUnit.NANOSECONDS);
+    }
 
-                if (requestCount == 0) {
-                    intervalStartMs = System.currentTimeMillis();
+    /**
+     * Выполняется только в потоке планировщика, поэтому очереди разбирает единственный потребитель.
+     * У каждого ключа своя очередь, так что исчерпавший лимит ключ не задерживает остальные.
+     * Разрешение берется до выбора ожидающего; если все оставшиеся успели отказаться (дедлайн, прерывание),
+     * одно разрешение пропадает.
+     */
+    private void drainPending() {
+        nextDrainAt.set(NOT_SCHEDULED);
+        long minWaitTimeNanos = Long.MAX_VALUE;
+        for (Map.Entry<String, WaiterQueue> entry : waiters.entrySet()) {
+            WaiterQueue queue = entry.getValue();
+            while (!queue.isEmpty()) {
+                long waitTimeNanos = tryAcquirePermit(entry.getKey());
+                if (waitTimeNanos > 0) {
+                    events.onEvent(EventType.REQUESTS_QUEUED, entry.getKey(), queue.size(), waitTimeNanos, null);
+                    minWaitTimeNanos = Math.min(minWaitTimeNanos, waitTimeNanos);
+                    break;
+                }
+                Waiter next = queue.pollGranted();
+                if (next == null) {
+                    break;
                 }
-                requestCount++;
+                permitGranted(next.ticket.enqueuedAt);
+                next.onGranted();
+            }
+            if (queue.isEmpty()) {
+                waiters.computeIfPresent(entry.getKey(), (key, current) -> current.isEmpty() ? null : current);
+            }
+        }
+        if (minWaitTimeNanos != Long.MAX_VALUE) {
+            scheduleDrain(minWaitTimeNanos);
+        }
+    }
 
-                statusCode = response.statusCode();
-                if (statusCode < 200 || statusCode >= 300) {
-                    log.error("Request failed with status code {}\n", statusCode);
-                } else {
-                    log.debug("Request successful with status code {}\n", statusCode);
-                }
-            } catch (HttpTimeoutException e) {
-                statusCode = 504;
-                log.error("Request timed out: {}", e.getMessage());
-            } catch (ConnectException e) {
-                statusCode = 502;
-                log.error("Connection failure: {}", e.getMessage());
-            } catch (IOException e) {
-                statusCode = 503;
-                log.error("I/O Exception: {}", e.getMessage());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.error("Request interrupted: {}", e.getMessage());
-            } catch (Exception e) {
-                log.error("An error has occurred: {}", e.getMessage());
-                e.printStackTrace();
+    /**
+     * Вызывается и в потоке планировщика, поэтому сериализация уходит в общий ForkJoinPool, как в BatchSubmission.
+     */
+    private void dispatch(AsyncWaiter waiter) {
+        CompletableFuture.supplyAsync(() -> waiter.body != null
+                        ? buildRequest(waiter.body, waiter.signature)
+                        : buildRequest(waiter.document, waiter.signature))
+                .thenCompose(request -> sendAsync(request, keyOf(waiter.document)))
+                .whenComplete((outcome, e) -> {
+                    if (e != null) {
+                        waiter.result.completeExceptionally(unwrap(e));
+                    } else {
+                        settle(waiter, outcome);
+                    }
+                });
+    }
+
+    /**
+     * Завершает асинхронный запрос или планирует его повтор. Повтор не отправляется напрямую, а после паузы
+     * снова проходит через очередь ключа, поэтому волна ошибок не превращается в волну запросов сверх лимита.
+     * Повтор, который не успеет начаться до дедлайна, не планируется: результат — код этой попытки.
+     */
+    private void settle(AsyncWaiter waiter, Outcome outcome) {
+        long delayNanos = retryDelayNanos(waiter.attempt, outcome, waiter.ticket.deadlineNanos);
+        if (delayNanos < 0) {
+            waiter.result.complete(outcome.statusCode);
+            return;
+        }
+        scheduler.schedule(() -> enqueue(waiter.retry(outcome.statusCode)), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Повтор, который не успеет начаться до дедлайна, не планируется и не учитывается в метриках.
+     *
+     * @return пауза перед повтором или -1, если повторять не нужно
+     */
+    private long retryDelayNanos(int attempt, Outcome outcome, long deadlineNanos) {
+        long delayNanos = retryPolicy.delayNanos(attempt, outcome.statusCode, outcome.retryAfterNanos);
+        if (delayNanos < 0 || deadlineNanos != NO_DEADLINE && System.nanoTime() + delayNanos - deadlineNanos >= 0) {
+            return -1;
+        }
+        metrics.retryScheduled(outcome.statusCode);
+        events.onEvent(EventType.RETRY_SCHEDULED, null, outcome.statusCode, delayNanos, null);
+        return delayNanos;
+    }
+
+    /**
+     * Документ сериализуется сразу в UTF-8 байты в буфер из пула и публикуется без копирования.
+     * Буфер возвращается в пул только после завершения запроса, поэтому так делается лишь в синхронном пути.
+     * Тот же запрос используется и для повторов.
+     */
+    private int send(Document document, String signature, String key, Ticket ticket) {
+        PooledBuffer buffer = BUFFERS.acquire();
+        try {
+            HttpRequest request = buildRequest(document, signature, buffer);
+            for (int attempt = 0; ; attempt++) {
+                Outcome outcome = execute(request, key);
+                long delayNanos = retryDelayNanos(attempt, outcome, ticket.deadlineNanos);
+                if (delayNanos < 0 || !awaitDeadline(key, System.nanoTime() + delayNanos)
+                        || acquirePermit(key, ticket.retry()) != 0) {
+                    return outcome.statusCode;
+                }
+            }
+        } finally {
+            BUFFERS.release(buffer);
+        }
+    }
+
+    private Outcome execute(HttpRequest request, String key) {
+        metrics.requestStarted();
+        long start = System.nanoTime();
+        try {
+            return completed(client.send(request, HttpResponse.BodyHandlers.discarding()), start, key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(e, start, key);
+        } catch (Exception e) {
+            return failed(e, start, key);
+        }
+    }
+
+    /**
+     * Асинхронная отправка. Future всегда завершается результатом, ошибки переводятся в коды так же, как в post.
+     */
+    private CompletableFuture<Outcome> sendAsync(HttpRequest request, String key) {
+        metrics.requestStarted();
+        long start = System.nanoTime();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> e == null ? completed(response, start, key) : failed(e, start, key));
+    }
+
+    private Outcome completed(HttpResponse<?> response, long startNanos, String key) {
+        long latencyNanos = System.nanoTime() - startNanos;
+        int statusCode = response.statusCode();
+        metrics.requestCompleted(statusCode, latencyNanos);
+        events.onEvent(EventType.RESPONSE, key, statusCode, latencyNanos, null);
+        feedback(key, statusCode, latencyNanos);
+        return new Outcome(statusCode, retryPolicy.isRetryable(statusCode) ? retryAfterNanos(response) : -1);
+    }
+
+    private Outcome failed(Throwable error, long startNanos, String key) {
+        long latencyNanos = System.nanoTime() - startNanos;
+        Throwable cause = unwrap(error);
+        int statusCode = statusOf(cause);
+        metrics.requestCompleted(statusCode, latencyNanos);
+        events.onEvent(EventType.REQUEST_FAILED, key, statusCode, latencyNanos, cause);
+        feedback(key, statusCode, latencyNanos);
+        return new Outcome(statusCode, -1);
+    }
+
+    private void feedback(String key, int statusCode, long latencyNanos) {
+        AdaptiveRateLimiter limiter = adaptive ? adaptiveLimiter(key) : null;
+        if (limiter != null) {
+            limiter.onResponse(statusCode, latencyNanos, this::limitChanged);
+        }
+    }
+
+    /**
+     * Retry-After в секундах или в виде HTTP-даты.
+     *
+     * @return сколько наносекунд просит подождать сервер, -1 если заголовка нет или он некорректен
+     */
+    private static long retryAfterNanos(HttpResponse<?> response) {
+        Optional<String> header = response.headers().firstValue("Retry-After");
+        if (header.isEmpty()) {
+            return -1;
+        }
+        String value = header.get().trim();
+        try {
+            if (!value.isEmpty() && Character.isDigit(value.charAt(0))) {
+                return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
             }
+            ZonedDateTime retryAt = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(Instant.now(), retryAt).toNanos());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
 
-            return statusCode;
+    private void serialize(Document document, PooledBuffer buffer) {
+        try {
+            documentWriter.writeValue(buffer, document);
+        } catch (IOException e) {
+            log.error("The request was not sent, serialization error on the object {}: {}", document, e.toString());
+            throw new RuntimeException(e);
         }
     }
 
-    @Value
-    @Builder
+    private HttpRequest buildRequest(Document document, String signature, PooledBuffer buffer) {
+        serialize(document, buffer);
+        return buildRequest(HttpRequest.BodyPublishers.ofByteArray(buffer.array(), 0, buffer.size()), signature);
+    }
+
+    /**
+     * Запрос асинхронного пути: тело в собственном массиве, потому что живет дольше вызова.
+     */
+    private HttpRequest buildRequest(Document document, String signature) {
+        byte[] body;
+        try {
+            body = documentWriter.writeValueAsBytes(document);
+        } catch (JsonProcessingException e) {
+            log.error("The request was not sent, serialization error on the object {}: {}", document, e.toString());
+            throw new RuntimeException(e);
+        }
+        return buildRequest(HttpRequest.BodyPublishers.ofByteArray(body), signature);
+    }
+
+    /**
+     * URI, Content-Type и таймаут заданы в шаблоне один раз, на запрос копируется только он. Шаблон после
+     * конструктора не меняется, поэтому copy() из разных потоков безопасен. Токен читается на каждый запрос.
+     */
+    private HttpRequest buildRequest(HttpRequest.BodyPublisher body, String signature) {
+        return requestTemplate.copy()
+                .POST(body)
+                .header("Authorization", authToken.get())
+                .header("Signature", signature)
+                .build();
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static int statusOf(Throwable e) {
+        if (e instanceof HttpTimeoutException) {
+            return 504;
+        } else if (e instanceof ConnectException) {
+            return 502;
+        } else if (e instanceof IOException) {
+            return 503;
+        }
+        return 500;
+    }
+
+    /**
+     * Классы приоритета ожидающих. Пока в очереди ключа есть ожидающие более высокого класса,
+     * более низкий не обслуживается.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        /**
+         * Фоновые и пакетные отправки, в т.ч. {@link #postAll}, когда у ключа есть другие ожидающие.
+         */
+        LOW
+    }
+
+    /**
+     * Параметры ожидания одного вызова: класс приоритета, поток для справедливого разделения и дедлайн.
+     */
+    private static final class Ticket {
+        final Priority priority;
+        final String flow;
+        final long deadlineNanos;
+        final long enqueuedAt = System.nanoTime();
+
+        Ticket(Priority priority, String flow, long deadlineNanos) {
+            this.priority = priority;
+            this.flow = flow;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        Ticket retry() {
+            return new Ticket(priority, flow, deadlineNanos);
+        }
+    }
+
+    /**
+     * Ожидающий в очереди. Выдача разрешения и отказ (дедлайн, прерывание) — переходы из WAITING одним CAS,
+     * поэтому ровно один из них выигрывает. Отказавшиеся удаляются из очереди лениво, при разборе.
+     */
+    private abstract static class Waiter {
+        private static final int WAITING = 0;
+        private static final int GRANTED = 1;
+        private static final int CANCELLED = 2;
+
+        final Ticket ticket;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        Waiter(Ticket ticket) {
+            this.ticket = ticket;
+        }
+
+        boolean grant() {
+            return state.compareAndSet(WAITING, GRANTED);
+        }
+
+        boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        boolean isGranted() {
+            return state.get() == GRANTED;
+        }
+
+        /**
+         * Вызывается в потоке планировщика после успешного grant.
+         */
+        abstract void onGranted();
+    }
+
+    private static final class ThreadWaiter extends Waiter {
+        private final Thread thread = Thread.currentThread();
+
+        ThreadWaiter(Ticket ticket) {
+            super(ticket);
+        }
+
+        @Override
+        void onGranted() {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private final class AsyncWaiter extends Waiter {
+        final Document document;
+        /**
+         * Готовое тело запроса (например, из {@link Outbox}) или null — тогда документ сериализуется при отправке.
+         */
+        final HttpRequest.BodyPublisher body;
+        final String signature;
+        final int attempt;
+        final CompletableFuture<Integer> result;
+        /**
+         * Код предыдущей попытки — результат, если повтор не успеет получить разрешение до дедлайна.
+         */
+        final int previousStatusCode;
+        /**
+         * Таймер дедлайна в очереди. Отменяется при выдаче разрешения, чтобы планировщик не держал документ до дедлайна.
+         */
+        volatile ScheduledFuture<?> deadlineTimer;
+
+        AsyncWaiter(Ticket ticket, Document document, String signature, int attempt, CompletableFuture<Integer> result) {
+            this(ticket, document, null, signature, attempt, result, STATUS_NOT_SENT);
+        }
+
+        AsyncWaiter(Ticket ticket, Document document, HttpRequest.BodyPublisher body, String signature,
+                    CompletableFuture<Integer> result) {
+            this(ticket, document, body, signature, 0, result, STATUS_NOT_SENT);
+        }
+
+        private AsyncWaiter(Ticket ticket, Document document, HttpRequest.BodyPublisher body, String signature,
+                            int attempt, CompletableFuture<Integer> result, int previousStatusCode) {
+            super(ticket);
+            this.document = document;
+            this.body = body;
+            this.signature = signature;
+            this.attempt = attempt;
+            this.result = result;
+            this.previousStatusCode = previousStatusCode;
+        }
+
+        AsyncWaiter retry(int statusCode) {
+            return new AsyncWaiter(ticket.retry(), document, body, signature, attempt + 1, result, statusCode);
+        }
+
+        @Override
+        void onGranted() {
+            ScheduledFuture<?> timer = deadlineTimer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            dispatch(this);
+        }
+    }
+
+    /**
+     * Очередь ожидающих одного ключа: строгий приоритет между классами, а внутри класса — deficit round-robin
+     * по потокам: поток получает quantum (вес) разрешений за круг, затем уходит в конец списка активных.
+     * Все операции O(1) под коротким ReentrantLock, пустые потоки удаляются сразу.
+     */
+    private static final class WaiterQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityClass[] classes = new PriorityClass[Priority.values().length];
+        private volatile int size;
+
+        WaiterQueue() {
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = new PriorityClass();
+            }
+        }
+
+        void add(Waiter waiter, ToIntFunction<String> weight) {
+            lock.lock();
+            try {
+                PriorityClass priorityClass = classes[waiter.ticket.priority.ordinal()];
+                FlowQueue flow = priorityClass.flows.get(waiter.ticket.flow);
+                if (flow == null) {
+                    flow = new FlowQueue(waiter.ticket.flow, Math.max(1, weight.applyAsInt(waiter.ticket.flow)));
+                    priorityClass.flows.put(flow.id, flow);
+                    priorityClass.active.addLast(flow);
+                }
+                flow.waiters.addLast(waiter);
+                size++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Извлекает следующего по порядку ожидающего, которому удалось выдать разрешение (grant),
+         * пропуская отказавшихся.
+         */
+        Waiter pollGranted() {
+            lock.lock();
+            try {
+                for (PriorityClass priorityClass : classes) {
+                    while (!priorityClass.active.isEmpty()) {
+                        FlowQueue flow = priorityClass.active.peekFirst();
+                        if (flow.deficit <= 0) {
+                            flow.deficit += flow.quantum;
+                        }
+                        Waiter waiter = flow.waiters.pollFirst();
+                        flow.deficit--;
+                        size--;
+                        if (flow.waiters.isEmpty()) {
+                            priorityClass.active.pollFirst();
+                            priorityClass.flows.remove(flow.id);
+                        } else if (flow.deficit <= 0) {
+                            priorityClass.active.addLast(priorityClass.active.pollFirst());
+                        }
+                        if (waiter.grant()) {
+                            return waiter;
+                        }
+                    }
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Включая отказавшихся, которые еще не удалены.
+         */
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private static final class PriorityClass {
+        final Map<String, FlowQueue> flows = new HashMap<>();
+        final Deque<FlowQueue> active = new ArrayDeque<>();
+    }
+
+    private static final class FlowQueue {
+        final String id;
+        final int quantum;
+        final Deque<Waiter> waiters = new ArrayDeque<>();
+        int deficit;
+
+        FlowQueue(String id, int quantum) {
+            this.id = id;
+            this.quantum = quantum;
+        }
+    }
+
+    /**
+     * Итог одной попытки: код статуса и Retry-After (-1, если его нет или код не подлежит повтору).
+     */
+    private record Outcome(int statusCode, long retryAfterNanos) {
+    }
+
+    /**
+     * Тело запроса, которое генерируется частями по запросу подписчика (HTTP клиента): сначала поля документа,
+     * затем товары из итератора внутри массива products. Длина заранее неизвестна, поэтому отправка идет chunked.
+     */
+    private final class ProductStreamPublisher implements HttpRequest.BodyPublisher {
+        private final Document document;
+        private final Iterator<Product> products;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        ProductStreamPublisher(Document document, Iterator<Product> products) {
+            this.document = document;
+            this.products = products;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            if (!subscribed.compareAndSet(false, true)) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("The product stream can only be sent once"));
+                return;
+            }
+            subscriber.onSubscribe(new ChunkSubscription(subscriber));
+        }
+
+        private final class ChunkSubscription implements Flow.Subscription {
+            private final Flow.Subscriber<? super ByteBuffer> subscriber;
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+            private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(STREAM_CHUNK_SIZE + 8192);
+            private volatile boolean cancelled;
+            private JsonGenerator generator;
+            private boolean finished;
+
+            ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                    return;
+                }
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+
+            /**
+             * Подписчик может вызвать request прямо из onNext, поэтому части выдает только один поток за раз.
+             */
+            private void drain() {
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+                do {
+                    while (!cancelled && !finished && demand.get() > 0) {
+                        ByteBuffer next;
+                        try {
+                            next = nextChunk();
+                        } catch (IOException | RuntimeException e) {
+                            cancelled = true;
+                            log.error("The product stream failed: {}", e.getMessage());
+                            subscriber.onError(e);
+                            return;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(next);
+                        if (finished) {
+                            subscriber.onComplete();
+                        }
+                    }
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            private ByteBuffer nextChunk() throws IOException {
+                chunk.reset();
+                if (generator == null) {
+                    generator = objectMapper.getFactory().createGenerator(chunk);
+                    writeHeader();
+                }
+                while (chunk.size() < STREAM_CHUNK_SIZE) {
+                    if (!products.hasNext()) {
+                        generator.writeEndArray();
+                        generator.writeEndObject();
+                        generator.close();
+                        finished = true;
+                        break;
+                    }
+                    productWriter.writeValue(generator, products.next());
+                }
+                return ByteBuffer.wrap(chunk.toByteArray());
+            }
+
+            /**
+             * Заголовок строится из копии без товаров, чтобы список в документе не попал в дерево целиком.
+             */
+            private void writeHeader() throws IOException {
+                ObjectNode header = objectMapper.valueToTree(document.toBuilder().products(null).build());
+                header.remove("products");
+                generator.writeStartObject();
+                Iterator<Map.Entry<String, JsonNode>> fields = header.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    generator.writeFieldName(field.getKey());
+                    generator.writeTree(field.getValue());
+                }
+                generator.writeArrayFieldStart("products");
+                generator.flush();
+            }
+        }
+    }
+
+    /**
+     * Пул буферов сериализации. Не привязан к потокам, поэтому не разрастается при тысячах виртуальных потоков.
+     * Буферы, выросшие больше maxPooledSize, в пул не возвращаются.
+     */
+    private static class BufferPool {
+        private final BlockingQueue<PooledBuffer> buffers;
+        private final int maxPooledSize;
+
+        BufferPool(int capacity, int maxPooledSize) {
+            this.buffers = new ArrayBlockingQueue<>(capacity);
+            this.maxPooledSize = maxPooledSize;
+        }
+
+        PooledBuffer acquire() {
+            PooledBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                return new PooledBuffer();
+            }
+            buffer.reset();
+            return buffer;
+        }
+
+        void release(PooledBuffer buffer) {
+            if (buffer.array().length <= maxPooledSize) {
+                buffers.offer(buffer);
+            }
+        }
+    }
+
+    private static class PooledBuffer extends ByteArrayOutputStream {
+        PooledBuffer() {
+            super(8192);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * Состояние одной пакетной отправки. Решения принимаются под монитором пакета, а сериализация и отправка
+     * запускаются уже вне его. Подряд идущие документы с одним ключом лимита объединяются в одну пачку разрешений.
+     */
+    private final class BatchSubmission {
+        private final Iterator<Document> documents;
+        private final String signature;
+        private final int maxInFlight;
+        private final BiConsumer<Document, Integer> listener;
+        private final CompletableFuture<Void> completion = new CompletableFuture<>();
+        private final Deque<Document> granted = new ArrayDeque<>();
+        private final List<Document> chunk = new ArrayList<>();
+        private String chunkKey;
+        private long chunkRequestedAt;
+        private Document lookahead;
+        private boolean waitingForPermits;
+        private int inFlight;
+
+        BatchSubmission(Iterator<Document> documents, String signature, int maxInFlight,
+                        BiConsumer<Document, Integer> listener) {
+            this.documents = documents;
+            this.signature = signature;
+            this.maxInFlight = maxInFlight;
+            this.listener = listener;
+        }
+
+        void pump() {
+            List<Document> toSend = new ArrayList<>();
+            boolean done;
+            synchronized (this) {
+                while (true) {
+                    while (inFlight < maxInFlight && !granted.isEmpty()) {
+                        toSend.add(granted.poll());
+                        inFlight++;
+                    }
+                    if (waitingForPermits || granted.size() >= maxInFlight) {
+                        break;
+                    }
+                    if (chunk.isEmpty() && !nextChunk()) {
+                        break;
+                    }
+                    if (!acquireChunk()) {
+                        break;
+                    }
+                }
+                done = !waitingForPermits && chunk.isEmpty() && lookahead == null && !documents.hasNext()
+                        && granted.isEmpty() && inFlight == 0;
+            }
+            toSend.forEach(this::send);
+            if (done) {
+                completion.complete(null);
+            }
+        }
+
+        private boolean nextChunk() {
+            if (lookahead == null && documents.hasNext()) {
+                lookahead = documents.next();
+            }
+            if (lookahead == null) {
+                return false;
+            }
+            chunkKey = keyOf(lookahead);
+            chunkRequestedAt = System.nanoTime();
+            int chunkLimit = Math.min(maxInFlight, limiterFor(chunkKey, System.nanoTime()).capacity());
+            do {
+                chunk.add(lookahead);
+                lookahead = documents.hasNext() ? documents.next() : null;
+            } while (lookahead != null && chunk.size() < chunkLimit && chunkKey.equals(keyOf(lookahead)));
+            return true;
+        }
+
+        /**
+         * Если у ключа уже есть ожидающие вызовы, пакет не обгоняет их: документы встают в общую очередь
+         * по одному с приоритетом LOW.
+         */
+        private boolean acquireChunk() {
+            WaiterQueue queue = waiters.get(chunkKey);
+            if (queue != null && !queue.isEmpty()) {
+                metrics.permitDenied();
+                waitingForPermits = true;
+                addWaiter(chunkKey, new BatchWaiter(new Ticket(Priority.LOW, flowOf(chunk.get(0)), NO_DEADLINE)));
+                return false;
+            }
+            long now = System.nanoTime();
+            RateLimiter limiter = limiterFor(chunkKey, now);
+            if (limiter.supportsReservation()) {
+                long waitTimeNanos = limiter.reserve(now, chunk.size());
+                if (waitTimeNanos > 0) {
+                    metrics.permitDenied();
+                    List<Document> reserved = new ArrayList<>(chunk);
+                    chunk.clear();
+                    waitingForPermits = true;
+                    scheduler.schedule(() -> onPermits(reserved), waitTimeNanos, TimeUnit.NANOSECONDS);
+                    return false;
+                }
+            } else {
+                long waitTimeNanos = limiter.tryAcquire(now, chunk.size());
+                if (waitTimeNanos > 0) {
+                    metrics.permitDenied();
+                    waitingForPermits = true;
+                    scheduler.schedule(() -> onPermits(List.of()), waitTimeNanos, TimeUnit.NANOSECONDS);
+                    return false;
+                }
+            }
+            recordGranted(chunk.size());
+            granted.addAll(chunk);
+            chunk.clear();
+            return true;
+        }
+
+        private void recordGranted(int permits) {
+            long waitTimeNanos = System.nanoTime() - chunkRequestedAt;
+            for (int i = 0; i < permits; i++) {
+                metrics.permitGranted(waitTimeNanos);
+            }
+        }
+
+        private void onGranted() {
+            synchronized (this) {
+                recordGranted(1);
+                granted.add(chunk.remove(0));
+                waitingForPermits = false;
+            }
+            pump();
+        }
+
+        private void onPermits(List<Document> reserved) {
+            synchronized (this) {
+                recordGranted(reserved.size());
+                granted.addAll(reserved);
+                waitingForPermits = false;
+            }
+            pump();
+        }
+
+        /**
+         * Первая попытка использует разрешение из пачки, повторы идут через общую очередь как в postAsync,
+         * а документ занимает место в maxInFlight до окончательного результата.
+         */
+        private void send(Document document) {
+            AsyncWaiter request = new AsyncWaiter(new Ticket(Priority.NORMAL, flowOf(document), NO_DEADLINE),
+                    document, signature, 0, new CompletableFuture<>());
+            CompletableFuture.supplyAsync(() -> buildRequest(document, signature))
+                    .thenCompose(httpRequest -> sendAsync(httpRequest, keyOf(document)))
+                    .whenComplete((outcome, e) -> {
+                        if (e != null) {
+                            request.result.complete(statusOf(unwrap(e)));
+                        } else {
+                            settle(request, outcome);
+                        }
+                    });
+            request.result
+                    .exceptionally(e -> statusOf(unwrap(e)))
+                    .thenAccept(statusCode -> {
+                        try {
+                            listener.accept(document, statusCode);
+                        } catch (RuntimeException e) {
+                            log.error("Batch listener failed: {}", e.getMessage());
+                        }
+                        synchronized (this) {
+                            inFlight--;
+                        }
+                        pump();
+                    });
+        }
+
+        private final class BatchWaiter extends Waiter {
+            BatchWaiter(Ticket ticket) {
+                super(ticket);
+            }
+
+            @Override
+            void onGranted() {
+                BatchSubmission.this.onGranted();
+            }
+        }
+    }
+
+    /**
+     * Стратегия ограничения частоты запросов. Реализации потокобезопасны и не создают объектов при получении
+     * разрешения. Время передается извне (System.nanoTime()), чтобы стратегии не зависели от источника времени.
+     */
+    public interface RateLimiter {
+        /**
+         * @return 0, если разрешения выданы, иначе через сколько наносекунд имеет смысл повторить попытку
+         */
+        long tryAcquire(long nowNanos, int permits);
+
+        /**
+         * Безусловно бронирует разрешения, возможно в будущем.
+         *
+         * @return через сколько наносекунд забронированные разрешения можно использовать (0 — сразу)
+         */
+        default long reserve(long nowNanos, int permits) {
+            throw new UnsupportedOperationException(getClass().getName() + " does not support reservation");
+        }
+
+        default boolean supportsReservation() {
+            return false;
+        }
+
+        /**
+         * Сколько разрешений tryAcquire выдал бы сейчас, ничего не занимая. Значение сразу устаревает
+         * и пригодно только для оценки (например, чтобы сбросить нагрузку заранее). Реализация, которая не умеет
+         * оценивать, возвращает 0.
+         */
+        default int availablePermits(long nowNanos) {
+            return 0;
+        }
+
+        /**
+         * Максимальное количество разрешений, которое может быть выдано за один вызов.
+         */
+        int capacity();
+
+        /**
+         * Обратная связь по завершенному запросу (код может быть синтетическим). Используется адаптивными стратегиями.
+         */
+        default void onResponse(int statusCode, long latencyNanos) {
+        }
+    }
+
+    public enum Strategy {
+        /**
+         * Фиксированное окно. Не более limit запросов в окне, но на стыке двух окон возможен всплеск до 2 * limit.
+         */
+        FIXED_WINDOW,
+        /**
+         * Журнал времен последних limit запросов. Точная гарантия: в любом скользящем интервале не более limit
+         * запросов. Память O(limit).
+         */
+        SLIDING_LOG,
+        /**
+         * Взвешенная сумма счетчиков текущего и предыдущего окна. Память O(1), но гарантия приближенная:
+         * предполагается равномерное распределение запросов в предыдущем окне.
+         */
+        SLIDING_COUNTER,
+        /**
+         * Ведро токенов емкостью burst (по умолчанию limit), пополняется со скоростью limit за интервал.
+         * В любом интервале не более burst + limit запросов, в среднем — не более limit.
+         */
+        TOKEN_BUCKET,
+        /**
+         * Generic Cell Rate Algorithm: запросы разносятся на interval / limit друг от друга с допуском burst
+         * (по умолчанию 1). При burst = 1 в любом скользящем интервале не более limit запросов.
+         */
+        GCRA;
+
+        public RateLimiter create(int limit, long intervalNanos, int burst) {
+            switch (this) {
+                case FIXED_WINDOW:
+                    return new FixedWindowRateLimiter(limit, intervalNanos);
+                case SLIDING_LOG:
+                    return new SlidingLogRateLimiter(limit, intervalNanos);
+                case SLIDING_COUNTER:
+                    return new SlidingCounterRateLimiter(limit, intervalNanos);
+                case TOKEN_BUCKET:
+                    return new TokenBucketRateLimiter(limit, intervalNanos, burst > 0 ? burst : limit);
+                case GCRA:
+                    return new GcraRateLimiter(limit, intervalNanos, burst > 0 ? burst : 1);
+                default:
+                    throw new IllegalStateException("Unknown strategy: " + this);
+            }
+        }
+    }
+
+    /**
+     * Окна выровнены по сетке от момента создания. Номер окна и счетчик упакованы в один AtomicLong
+     * (старшие и младшие 32 бита) и меняются одним CAS. Счетчик может превышать limit — это брони
+     * в следующих окнах: разрешение с порядковым номером k относится к окну windowIndex + k / limit.
+     */
+    public static class FixedWindowRateLimiter implements RateLimiter {
+        private final int limit;
+        private final long intervalNanos;
+        private final long origin;
+        private final AtomicLong state = new AtomicLong();
+
+        public FixedWindowRateLimiter(int limit, long intervalNanos) {
+            this.limit = limit;
+            this.intervalNanos = intervalNanos;
+            this.origin = System.nanoTime();
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, false);
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, true);
+        }
+
+        @Override
+        public boolean supportsReservation() {
+            return true;
+        }
+
+        private long acquire(long nowNanos, int permits, boolean reserve) {
+            checkPermits(permits, limit);
+            long currentWindow = Math.max(0, (nowNanos - origin) / intervalNanos);
+            while (true) {
+                long current = state.get();
+                long window = current >>> 32;
+                long count = current & 0xFFFFFFFFL;
+                if (currentWindow > window) {
+                    count = Math.max(0, count - (currentWindow - window) * limit);
+                    window = currentWindow;
+                }
+
+                long targetWindow = window + (count + permits - 1) / limit;
+                long waitNanos = targetWindow == window ? 0 : origin + targetWindow * intervalNanos - nowNanos;
+                if (waitNanos > 0 && !reserve) {
+                    return waitNanos;
+                }
+                if (state.compareAndSet(current, (window << 32) | (count + permits))) {
+                    return Math.max(0, waitNanos);
+                }
+            }
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            long currentWindow = Math.max(0, (nowNanos - origin) / intervalNanos);
+            long current = state.get();
+            long count = Math.max(0, (current & 0xFFFFFFFFL) - Math.max(0, currentWindow - (current >>> 32)) * limit);
+            return (int) Math.max(0, limit - count);
+        }
+
+        @Override
+        public int capacity() {
+            return limit;
+        }
+    }
+
+    /**
+     * Журнал может содержать будущие времена — это брони. Операции короткие и без ожиданий внутри,
+     * защищены ReentrantLock, который в отличие от монитора не закрепляет виртуальный поток за носителем.
+     */
+    public static class SlidingLogRateLimiter implements RateLimiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long intervalNanos;
+        private final long[] log;
+        private int head;
+
+        public SlidingLogRateLimiter(int limit, long intervalNanos) {
+            this.intervalNanos = intervalNanos;
+            this.log = new long[limit];
+            Arrays.fill(log, System.nanoTime() - intervalNanos);
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            checkPermits(permits, log.length);
+            lock.lock();
+            try {
+                long newest = log[(head + permits - 1) % log.length];
+                long waitNanos = newest + intervalNanos - nowNanos;
+                if (waitNanos > 0) {
+                    return waitNanos;
+                }
+                for (int i = 0; i < permits; i++) {
+                    log[head] = nowNanos;
+                    head = (head + 1) % log.length;
+                }
+                return 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            checkPermits(permits, log.length);
+            lock.lock();
+            try {
+                long slot = nowNanos;
+                for (int i = 0; i < permits; i++) {
+                    long available = log[head] + intervalNanos;
+                    slot = available - nowNanos > 0 ? available : nowNanos;
+                    log[head] = slot;
+                    head = (head + 1) % log.length;
+                }
+                return slot - nowNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            lock.lock();
+            try {
+                int available = 0;
+                while (available < log.length && log[(head + available) % log.length] + intervalNanos - nowNanos <= 0) {
+                    available++;
+                }
+                return available;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean supportsReservation() {
+            return true;
+        }
+
+        @Override
+        public int capacity() {
+            return log.length;
+        }
+    }
+
+    /**
+     * Брони сверх limit, как в FixedWindowRateLimiter, копятся в currentCount и при смене окна переносятся
+     * в следующие окна по limit на окно.
+     */
+    public static class SlidingCounterRateLimiter implements RateLimiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int limit;
+        private final long intervalNanos;
+        private long windowStart;
+        private long previousCount;
+        private long currentCount;
+
+        public SlidingCounterRateLimiter(int limit, long intervalNanos) {
+            this.limit = limit;
+            this.intervalNanos = intervalNanos;
+            this.windowStart = System.nanoTime();
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, false);
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, true);
+        }
+
+        @Override
+        public boolean supportsReservation() {
+            return true;
+        }
+
+        private long acquire(long nowNanos, int permits, boolean reserve) {
+            checkPermits(permits, limit);
+            lock.lock();
+            try {
+                long elapsed = advance(nowNanos);
+                long remaining = intervalNanos - elapsed;
+                long waitNanos;
+                if (currentCount + permits > limit) {
+                    // Последнее разрешение попадает в окно с номером (currentCount + permits - 1) / limit от текущего
+                    waitNanos = remaining + (currentCount + permits - 1 - limit) / limit * intervalNanos;
+                } else {
+                    double weighted = (double) previousCount * remaining / intervalNanos;
+                    if (weighted + currentCount + permits <= limit) {
+                        waitNanos = 0;
+                    } else {
+                        long allowedRemaining = (long) ((double) (limit - currentCount - permits) * intervalNanos
+                                / previousCount);
+                        waitNanos = Math.max(1, remaining - allowedRemaining);
+                    }
+                }
+                if (waitNanos == 0 || reserve) {
+                    currentCount += permits;
+                }
+                return waitNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Сдвигает окно к nowNanos, перенося брони сверх limit, и возвращает время от начала текущего окна.
+         */
+        private long advance(long nowNanos) {
+            long elapsed = nowNanos - windowStart;
+            if (elapsed >= intervalNanos) {
+                long windows = elapsed / intervalNanos;
+                long previous = Math.max(0, currentCount - (windows - 1) * limit);
+                previousCount = Math.min(limit, previous);
+                currentCount = Math.max(0, previous - limit);
+                windowStart += windows * intervalNanos;
+                elapsed -= windows * intervalNanos;
+            }
+            return elapsed;
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            lock.lock();
+            try {
+                long elapsed = advance(nowNanos);
+                double weighted = (double) previousCount * (intervalNanos - elapsed) / intervalNanos;
+                return (int) Math.max(0, Math.floor(limit - currentCount - weighted));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int capacity() {
+            return limit;
+        }
+    }
+
+    /**
+     * Ведро токенов в форме "виртуального расписания": вместо количества токенов хранится время,
+     * когда ведро снова станет полным, что эквивалентно GCRA с допуском burst.
+     */
+    public static class TokenBucketRateLimiter extends GcraRateLimiter {
+        public TokenBucketRateLimiter(int limit, long intervalNanos, int burst) {
+            super(limit, intervalNanos, burst);
+        }
+    }
+
+    /**
+     * Состояние — единственное "теоретическое время прибытия" (TAT) в AtomicLong, обновляется CAS.
+     */
+    public static class GcraRateLimiter implements RateLimiter {
+        private final int burst;
+        private final long emissionIntervalNanos;
+        private final AtomicLong theoreticalArrival;
+
+        public GcraRateLimiter(int limit, long intervalNanos, int burst) {
+            this.burst = burst;
+            this.emissionIntervalNanos = ceilDiv(intervalNanos, limit);
+            this.theoreticalArrival = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Интервал между разрешениями. Читается при каждой попытке, поэтому наследник может менять его на ходу.
+         */
+        protected long emissionIntervalNanos() {
+            return emissionIntervalNanos;
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, false);
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, true);
+        }
+
+        @Override
+        public boolean supportsReservation() {
+            return true;
+        }
+
+        private long acquire(long nowNanos, int permits, boolean reserve) {
+            checkPermits(permits, burst);
+            long emissionIntervalNanos = emissionIntervalNanos();
+            long toleranceNanos = burst * emissionIntervalNanos;
+            while (true) {
+                long arrival = theoreticalArrival.get();
+                long start = arrival - nowNanos > 0 ? arrival : nowNanos;
+                long newArrival = start + permits * emissionIntervalNanos;
+                long waitNanos = newArrival - nowNanos - toleranceNanos;
+                if (waitNanos > 0 && !reserve) {
+                    return waitNanos;
+                }
+                if (theoreticalArrival.compareAndSet(arrival, newArrival)) {
+                    return Math.max(0, waitNanos);
+                }
+            }
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            long emissionIntervalNanos = emissionIntervalNanos();
+            long arrival = theoreticalArrival.get();
+            long start = arrival - nowNanos > 0 ? arrival : nowNanos;
+            long available = (nowNanos + burst * emissionIntervalNanos - start) / emissionIntervalNanos;
+            return (int) Math.max(0, Math.min(burst, available));
+        }
+
+        @Override
+        public int capacity() {
+            return burst;
+        }
+    }
+
+    /**
+     * GCRA, у которого лимит подстраивается под ответы сервера по схеме AIMD. На 429, таймаут (504) или задержку,
+     * выросшую больше чем в LATENCY_TOLERANCE раз (и не меньше чем на MIN_LATENCY_RISE) относительно базовой,
+     * лимит умножается на DECREASE_FACTOR
+     * (не чаще раза за cooldown, чтобы ответы на уже отправленные запросы не снижали его каскадом), но не ниже 1.
+     * Успешный ответ добавляет 1 / limit, только если с прошлого роста разрешение хоть раз пришлось ждать или оно
+     * было отклонено: при нагрузке ниже лимита он не растет. Под полной нагрузкой за интервал лимит растет на 1 — до ceiling.
+     * Оценки задержки обновляются без синхронизации и приблизительны.
+     */
+    public static class AdaptiveRateLimiter extends GcraRateLimiter {
+        private static final double DECREASE_FACTOR = 0.7;
+        private static final double LATENCY_TOLERANCE = 2.0;
+        private static final double LATENCY_WEIGHT = 0.2;
+        private static final double BASELINE_WEIGHT = 0.01;
+        private static final int LATENCY_WARMUP = 20;
+        private static final long MIN_LATENCY_RISE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+        private static final long MIN_COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final long intervalNanos;
+        private final int ceiling;
+        private final DoubleConsumer listener;
+        private final AtomicLong limitBits;
+        private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime() - Long.MAX_VALUE / 2);
+        private final AtomicBoolean saturated = new AtomicBoolean();
+        private volatile double latencyNanos;
+        private volatile double baselineLatencyNanos;
+        private volatile int latencySamples;
+
+        /**
+         * @param listener получает новый лимит после снижения и после роста на каждую следующую единицу
+         */
+        public AdaptiveRateLimiter(int limit, int ceiling, long intervalNanos, int burst, DoubleConsumer listener) {
+            super(limit, intervalNanos, burst);
+            this.intervalNanos = intervalNanos;
+            this.ceiling = ceiling;
+            this.listener = listener;
+            this.limitBits = new AtomicLong(Double.doubleToLongBits(limit));
+        }
+
+        public double effectiveLimit() {
+            return Double.longBitsToDouble(limitBits.get());
+        }
+
+        @Override
+        protected long emissionIntervalNanos() {
+            return Math.max(1, (long) Math.ceil(intervalNanos / effectiveLimit()));
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            return markSaturated(super.tryAcquire(nowNanos, permits));
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            return markSaturated(super.reserve(nowNanos, permits));
+        }
+
+        private long markSaturated(long waitNanos) {
+            if (waitNanos > 0 && !saturated.get()) {
+                saturated.set(true);
+            }
+            return waitNanos;
+        }
+
+        @Override
+        public void onResponse(int statusCode, long latencyNanos) {
+            onResponse(statusCode, latencyNanos, listener);
+        }
+
+        /**
+         * То же, но об изменении лимита узнает listener этого вызова, а не заданный в конструкторе.
+         * Так общий для нескольких клиентов лимитер сообщает изменение клиенту, получившему ответ.
+         */
+        public void onResponse(int statusCode, long latencyNanos, DoubleConsumer listener) {
+            if (statusCode == 429 || statusCode == 504) {
+                decrease(listener);
+            } else if (statusCode >= 200 && statusCode < 300) {
+                if (isLatencyRising(latencyNanos)) {
+                    decrease(listener);
+                } else {
+                    increase(listener);
+                }
+            }
+        }
+
+        private boolean isLatencyRising(long sampleNanos) {
+            double latency = latencySamples == 0 ? sampleNanos : latencyNanos + LATENCY_WEIGHT * (sampleNanos - latencyNanos);
+            double baseline = latencySamples == 0 || latency < baselineLatencyNanos
+                    ? latency
+                    : baselineLatencyNanos + BASELINE_WEIGHT * (latency - baselineLatencyNanos);
+            latencyNanos = latency;
+            baselineLatencyNanos = baseline;
+            if (latencySamples < LATENCY_WARMUP) {
+                latencySamples++;
+                return false;
+            }
+            return latency > LATENCY_TOLERANCE * baseline && latency - baseline > MIN_LATENCY_RISE_NANOS;
+        }
+
+        private void decrease(DoubleConsumer listener) {
+            long now = System.nanoTime();
+            long last = lastDecrease.get();
+            long cooldownNanos = Math.min(intervalNanos, Math.max(MIN_COOLDOWN_NANOS, 2 * (long) latencyNanos));
+            if (now - last < cooldownNanos || !lastDecrease.compareAndSet(last, now)) {
+                return;
+            }
+            update(limit -> Math.max(1, limit * DECREASE_FACTOR), listener);
+        }
+
+        private void increase(DoubleConsumer listener) {
+            if (!saturated.compareAndSet(true, false)) {
+                return;
+            }
+            update(limit -> Math.min(ceiling, limit + 1 / limit), listener);
+        }
+
+        private void update(DoubleUnaryOperator change, DoubleConsumer listener) {
+            long current;
+            double limit;
+            double newLimit;
+            do {
+                current = limitBits.get();
+                limit = Double.longBitsToDouble(current);
+                newLimit = change.applyAsDouble(limit);
+                if (newLimit == limit) {
+                    return;
+                }
+            } while (!limitBits.compareAndSet(current, Double.doubleToLongBits(newLimit)));
+            if (newLimit < limit || Math.floor(newLimit) > Math.floor(limit)) {
+                listener.accept(newLimit);
+            }
+        }
+    }
+
+    /**
+     * Хранилище состояния лимита вне клиента, общее для нескольких экземпляров, процессов или узлов.
+     * Значение по ключу — "теоретическое время прибытия" GCRA в наносекундах от эпохи (0 для нового ключа).
+     * Времена берутся по системным часам, поэтому часы узлов должны быть синхронизированы.
+     */
+    public interface RateLimitStore {
+        long get(String key);
+
+        boolean compareAndSet(String key, long expected, long update);
+
+        /**
+         * Бронирует permits идущих подряд слотов по emissionIntervalNanos. Реализация для удаленного хранилища
+         * может переопределить метод, чтобы выполнять его за одно обращение (например, скриптом на стороне сервера).
+         *
+         * @return время прибытия до брони, не раньше nowEpochNanos: слот i (с 1) имеет время start + i * interval
+         */
+        default long lease(String key, long nowEpochNanos, int permits, long emissionIntervalNanos) {
+            while (true) {
+                long arrival = get(key);
+                long start = Math.max(arrival, nowEpochNanos);
+                if (compareAndSet(key, arrival, start + permits * emissionIntervalNanos)) {
+                    return start;
+                }
+            }
+        }
+    }
+
+    /**
+     * Эталонная реализация в памяти процесса. Полезна для тестов и для нескольких клиентов в одной JVM.
+     */
+    public static class InMemoryRateLimitStore implements RateLimitStore {
+        private final ConcurrentHashMap<String, AtomicLong> states = new ConcurrentHashMap<>();
+
+        @Override
+        public long get(String key) {
+            AtomicLong state = states.get(key);
+            return state != null ? state.get() : 0;
+        }
+
+        @Override
+        public boolean compareAndSet(String key, long expected, long update) {
+            return states.computeIfAbsent(key, k -> new AtomicLong()).compareAndSet(expected, update);
+        }
+    }
+
+    /**
+     * Хранилище для нескольких процессов на одном хосте: таблица с открытой адресацией в отображенном в память файле.
+     * Каждая операция выполняется под блокировкой всего файла (FileLock) и, внутри процесса, под ReentrantLock
+     * того же файла — FileLock не различает потоки одной JVM. Ключ хранится своим SHA-256, поэтому разные ключи
+     * не делят одну квоту. Ячейку, время прибытия в которой уже прошло, может занять новый ключ: такое состояние
+     * не отличается от пустого, поэтому таблица ограничивает только число одновременно активных ключей.
+     * Формат: заголовок (MAGIC, capacity), затем capacity ячеек [SHA-256 ключа, значение].
+     */
+    public static class MappedFileRateLimitStore implements RateLimitStore, AutoCloseable {
+        private static final long MAGIC = 0x4352505452415432L;
+        private static final int HEADER_SIZE = 16;
+        private static final int KEY_SIZE = 32;
+        private static final int SLOT_SIZE = KEY_SIZE + 8;
+        private static final Map<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final ReentrantLock lock;
+        private final int capacity;
+        private final MessageDigest digest;
+
+        /**
+         * @param capacity максимальное количество активных ключей; у существующего файла должно совпадать
+         *                 с указанным при создании
+         */
+        public MappedFileRateLimitStore(Path file, int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("The capacity must be positive. But was received: " + capacity);
+            }
+            Path path = file.toAbsolutePath().normalize();
+            this.capacity = capacity;
+            this.lock = PROCESS_LOCKS.computeIfAbsent(path, p -> new ReentrantLock());
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            lock.lock();
+            try {
+                this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                boolean valid;
+                FileLock fileLock = channel.lock();
+                try {
+                    this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+                    if (buffer.getLong(0) == 0) {
+                        buffer.putLong(8, capacity);
+                        buffer.putLong(0, MAGIC);
+                    }
+                    valid = buffer.getLong(0) == MAGIC && buffer.getLong(8) == capacity;
+                } finally {
+                    fileLock.release();
+                }
+                if (!valid) {
+                    channel.close();
+                    throw new IllegalArgumentException(String.format("The file %s is not a rate limit store " +
+                            "with capacity %d", path, capacity));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long get(String key) {
+            return locked(() -> {
+                int position = slotOf(key, false, 0);
+                return position < 0 ? 0 : buffer.getLong(position + KEY_SIZE);
+            });
+        }
+
+        @Override
+        public boolean compareAndSet(String key, long expected, long update) {
+            long nowEpochNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+            return locked(() -> {
+                int position = slotOf(key, true, nowEpochNanos);
+                if (buffer.getLong(position + KEY_SIZE) != expected) {
+                    return 0;
+                }
+                buffer.putLong(position + KEY_SIZE, update);
+                return 1;
+            }) != 0;
+        }
+
+        /**
+         * Чтение и запись под одной блокировкой файла, без повторов CAS.
+         */
+        @Override
+        public long lease(String key, long nowEpochNanos, int permits, long emissionIntervalNanos) {
+            return locked(() -> {
+                int position = slotOf(key, true, nowEpochNanos);
+                long start = Math.max(buffer.getLong(position + KEY_SIZE), nowEpochNanos);
+                buffer.putLong(position + KEY_SIZE, start + permits * emissionIntervalNanos);
+                return start;
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private long locked(LongSupplier operation) {
+            lock.lock();
+            try {
+                FileLock fileLock = channel.lock();
+                try {
+                    return operation.getAsLong();
+                } finally {
+                    fileLock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Ключ ищется до первой пустой ячейки; при вставке занимается первая по пути ячейка с прошедшим временем
+         * (ее значение обнуляется, как у нового ключа) или пустая.
+         *
+         * @return позиция ячейки ключа или -1, если ключа нет и insert = false
+         */
+        private int slotOf(String key, boolean insert, long nowEpochNanos) {
+            byte[] id = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            ByteBuffer idBuffer = ByteBuffer.wrap(id);
+            // 0 в первых 8 байтах зарезервирован под пустую ячейку
+            if (idBuffer.getLong(0) == 0) {
+                idBuffer.putLong(0, 1);
+            }
+            int index = (int) Math.floorMod(idBuffer.getLong(0), (long) capacity);
+            int reusable = -1;
+            for (int i = 0; i < capacity; i++) {
+                int position = HEADER_SIZE + index * SLOT_SIZE;
+                if (buffer.getLong(position) == 0) {
+                    if (!insert) {
+                        return -1;
+                    }
+                    return occupy(reusable >= 0 ? reusable : position, id);
+                }
+                if (matches(position, idBuffer)) {
+                    return position;
+                }
+                if (insert && reusable < 0 && buffer.getLong(position + KEY_SIZE) - nowEpochNanos < 0) {
+                    reusable = position;
+                }
+                index = index + 1 == capacity ? 0 : index + 1;
+            }
+            if (!insert) {
+                return -1;
+            }
+            if (reusable >= 0) {
+                return occupy(reusable, id);
+            }
+            throw new IllegalStateException("The rate limit store is full, capacity: " + capacity);
+        }
+
+        private boolean matches(int position, ByteBuffer id) {
+            for (int offset = 0; offset < KEY_SIZE; offset += Long.BYTES) {
+                if (buffer.getLong(position + offset) != id.getLong(offset)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int occupy(int position, byte[] id) {
+            buffer.put(position, id);
+            buffer.putLong(position + KEY_SIZE, 0);
+            return position;
+        }
+    }
+
+    /**
+     * Кэш результатов по идентификатору документа для {@link ClientBuilder#resultCache(ResultCache)}. Повторная
+     * отправка того же документа в течение ttl после успешного (2xx) ответа сразу получает сохраненный код и не
+     * расходует разрешение, а одновременные отправки одного документа выполняются одним HTTP запросом.
+     * Неуспешный ответ не сохраняется, но его получают все, кто ждал тот же запрос. Если же запрос так и не был
+     * отправлен (дедлайн или прерывание первого вызова), ждавшие отправляют его сами. Выполняющиеся запросы хранятся
+     * отдельно и не вытесняются, capacity ограничивает только сохраненные результаты: при превышении вытесняется давно
+     * не использованный (LRU), устаревшие удаляются при обращении.
+     * Операции O(1) под ReentrantLock.
+     */
+    public static class ResultCache {
+        /**
+         * Ключ по умолчанию: docId и regNumber. Документ без обоих не кэшируется.
+         */
+        public static final Function<Document, String> DOCUMENT_ID = document ->
+                document.getDocId() == null && document.getRegNumber() == null
+                        ? null
+                        : document.getDocId() + "|" + document.getRegNumber();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, CachedResult> results;
+        private final Map<String, CompletableFuture<Integer>> inFlight = new HashMap<>();
+        private final long ttlNanos;
+        private final Function<Document, String> key;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public ResultCache(int capacity, Duration ttl) {
+            this(capacity, ttl, DOCUMENT_ID);
+        }
+
+        /**
+         * @param key идентификатор документа; null — документ не кэшируется
+         */
+        public ResultCache(int capacity, Duration ttl, Function<Document, String> key) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("The capacity must be positive. But was received: " + capacity);
+            }
+            this.ttlNanos = ttl.toNanos();
+            this.key = key;
+            this.results = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        /**
+         * Сохраненный успешный результат: разрешение и запрос сэкономлены.
+         */
+        public long hits() {
+            return hits.sum();
+        }
+
+        /**
+         * Присоединение к уже выполняющемуся запросу того же документа: разрешение и запрос сэкономлены.
+         */
+        public long coalesced() {
+            return coalesced.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        public int size() {
+            lock.lock();
+            try {
+                return results.size() + inFlight.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String keyOf(Document document) {
+            return key.apply(document);
+        }
+
+        /**
+         * Если результат документа уже есть или запрос уже выполняется, возвращает его future. Иначе запоминает
+         * result как выполняющийся запрос и возвращает null; вызывающий обязан завершить result — кодом ответа
+         * или {@link CrptApi#STATUS_NOT_SENT}, если запрос так и не был отправлен.
+         */
+        CompletableFuture<Integer> claim(String cacheKey, CompletableFuture<Integer> result) {
+            long now = System.nanoTime();
+            lock.lock();
+            try {
+                CompletableFuture<Integer> pending = inFlight.get(cacheKey);
+                if (pending != null && pending.isDone()) {
+                    // Запрос уже завершился, но completed еще не успел перенести или удалить результат
+                    completedLocked(cacheKey, pending, pending.isCompletedExceptionally() ? null : pending.join());
+                    pending = null;
+                }
+                if (pending != null) {
+                    coalesced.increment();
+                    return pending;
+                }
+                CachedResult cached = results.get(cacheKey);
+                if (cached != null && cached.expiresAt - now > 0) {
+                    hits.increment();
+                    return cached.result;
+                }
+                if (cached != null) {
+                    results.remove(cacheKey);
+                }
+                inFlight.put(cacheKey, result);
+                misses.increment();
+            } finally {
+                lock.unlock();
+            }
+            result.whenComplete((statusCode, e) -> completed(cacheKey, result, statusCode));
+            return null;
+        }
+
+        private void completed(String cacheKey, CompletableFuture<Integer> result, Integer statusCode) {
+            lock.lock();
+            try {
+                completedLocked(cacheKey, result, statusCode);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Успешный результат переносится в LRU на ttl, остальные (в т.ч. STATUS_NOT_SENT) — нет.
+         */
+        private void completedLocked(String cacheKey, CompletableFuture<Integer> result, Integer statusCode) {
+            if (inFlight.get(cacheKey) != result) {
+                return;
+            }
+            inFlight.remove(cacheKey);
+            if (statusCode != null && statusCode >= 200 && statusCode < 300) {
+                results.put(cacheKey, new CachedResult(result, System.nanoTime() + ttlNanos));
+            }
+        }
+
+        private static final class CachedResult {
+            final CompletableFuture<Integer> result;
+            final long expiresAt;
+
+            CachedResult(CompletableFuture<Integer> result, long expiresAt) {
+                this.result = result;
+                this.expiresAt = expiresAt;
+            }
+        }
+    }
+
+    /**
+     * Журнал документов, ожидающих отправки, в отображенных в память сегментах каталога. Записи только дописываются,
+     * отправленные подтверждаются в любом порядке, а контрольная точка — позиция, до которой подтверждено все, —
+     * хранится в файле checkpoint. После перезапуска чтение продолжается с нее, поэтому записи, отправленные,
+     * но не подтвержденные до сбоя, отправляются повторно (at-least-once). Сегменты до контрольной точки удаляются.
+     * Запись в отображенную память переживает падение процесса, от сбоя ОС защищает {@link #force()}.
+     * Формат записи: [длина, CRC32 данных, данные]; длина 0 — конец данных, -1 — переход к следующему сегменту.
+     * Каталог используется одним процессом; операции выполняются под ReentrantLock и сводятся к копированию байт.
+     */
+    public static class Outbox implements AutoCloseable {
+        private static final int RECORD_HEADER_SIZE = 8;
+        private static final int END_OF_SEGMENT = -1;
+        private static final String SEGMENT_SUFFIX = ".seg";
+        private static final String CHECKPOINT_FILE = "checkpoint";
+
+        private final Path dir;
+        private final int segmentSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+        private final MappedByteBuffer checkpoint;
+        private final Deque<Entry> unacknowledged = new ArrayDeque<>();
+        private final CRC32 crc = new CRC32();
+        private long writePosition;
+        private long readPosition;
+        private volatile int unread;
+        private boolean closed;
+
+        /**
+         * Открывает журнал и восстанавливает его после сбоя: недописанная или поврежденная запись в конце
+         * отбрасывается вместе со всем, что за ней.
+         *
+         * @param segmentSize размер файла сегмента; у существующего журнала должен совпадать с указанным при создании
+         */
+        public Outbox(Path dir, int segmentSize) {
+            if (segmentSize <= 2 * RECORD_HEADER_SIZE) {
+                throw new IllegalArgumentException("The segmentSize is too small. But was received: " + segmentSize);
+            }
+            this.dir = dir.toAbsolutePath().normalize();
+            this.segmentSize = segmentSize;
+            try {
+                Files.createDirectories(this.dir);
+                try (FileChannel channel = FileChannel.open(this.dir.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    this.checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+                }
+                recover(checkpoint.getLong(0));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void recover(long acknowledged) throws IOException {
+            long firstSegment = acknowledged / segmentSize;
+            long position = acknowledged;
+            int records = 0;
+            while (Files.exists(segmentPath(position / segmentSize))) {
+                MappedByteBuffer buffer = segment(position / segmentSize);
+                int offset = (int) (position % segmentSize);
+                int length = segmentSize - offset < RECORD_HEADER_SIZE ? END_OF_SEGMENT : buffer.getInt(offset);
+                if (length == END_OF_SEGMENT) {
+                    position = (position / segmentSize + 1) * segmentSize;
+                    continue;
+                }
+                if (length <= 0 || length > segmentSize - offset - RECORD_HEADER_SIZE
+                        || buffer.getInt(offset + 4) != checksum(buffer, offset + RECORD_HEADER_SIZE, length)) {
+                    for (int i = offset; i < segmentSize; i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+                records++;
+            }
+            long lastSegment = position / segmentSize;
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (!name.endsWith(SEGMENT_SUFFIX)) {
+                        continue;
+                    }
+                    long index = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    // Сегменты после конца данных остались от сбоя и не должны всплыть при следующем восстановлении
+                    if (index < firstSegment || index > lastSegment) {
+                        segments.remove(index);
+                        Files.delete(file);
+                    }
+                }
+            }
+            this.readPosition = acknowledged;
+            this.writePosition = position;
+            this.unread = records;
+            if (records > 0) {
+                log.info("Outbox {} recovered {} unacknowledged records", dir, records);
+            }
+        }
+
+        /**
+         * Количество записей, еще не переданных на отправку.
+         */
+        public int size() {
+            return unread;
+        }
+
+        /**
+         * Сбрасывает записанное на диск. Без этого записи переживают падение процесса, но не сбой ОС.
+         */
+        public void force() {
+            lock.lock();
+            try {
+                segments.values().forEach(MappedByteBuffer::force);
+                checkpoint.force();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Сбрасывает данные на диск и запрещает новые записи. Подтверждения еще отправляемых записей принимаются.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                force();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long append(byte[] data) {
+            if (data.length == 0 || data.length > segmentSize - 2 * RECORD_HEADER_SIZE) {
+                throw new IllegalArgumentException(String.format("The record size must be between 1 and %d. " +
+                        "But was received: %d", segmentSize - 2 * RECORD_HEADER_SIZE, data.length));
+            }
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("The outbox " + dir + " is closed");
+                }
+                int offset = (int) (writePosition % segmentSize);
+                if (offset + RECORD_HEADER_SIZE + data.length > segmentSize) {
+                    if (segmentSize - offset >= RECORD_HEADER_SIZE) {
+                        segment(writePosition / segmentSize).putInt(offset, END_OF_SEGMENT);
+                    }
+                    writePosition = (writePosition / segmentSize + 1) * segmentSize;
+                    offset = 0;
+                }
+                MappedByteBuffer buffer = segment(writePosition / segmentSize);
+                buffer.put(offset + RECORD_HEADER_SIZE, data);
+                buffer.putInt(offset + 4, checksum(buffer, offset + RECORD_HEADER_SIZE, data.length));
+                buffer.putInt(offset, data.length);
+                long position = writePosition;
+                writePosition += RECORD_HEADER_SIZE + data.length;
+                unread++;
+                return position;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return следующая непрочитанная запись или null
+         */
+        Entry poll() {
+            lock.lock();
+            try {
+                while (readPosition != writePosition) {
+                    MappedByteBuffer buffer = segment(readPosition / segmentSize);
+                    int offset = (int) (readPosition % segmentSize);
+                    int length = segmentSize - offset < RECORD_HEADER_SIZE ? END_OF_SEGMENT : buffer.getInt(offset);
+                    if (length == END_OF_SEGMENT) {
+                        readPosition = (readPosition / segmentSize + 1) * segmentSize;
+                        continue;
+                    }
+                    byte[] data = new byte[length];
+                    buffer.get(offset + RECORD_HEADER_SIZE, data);
+                    Entry entry = new Entry(readPosition, readPosition + RECORD_HEADER_SIZE + length, data);
+                    readPosition = entry.end;
+                    unacknowledged.addLast(entry);
+                    unread--;
+                    return entry;
+                }
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Контрольная точка сдвигается через все подряд подтвержденные записи от начала неподтвержденных.
+         */
+        void acknowledge(Entry entry) {
+            lock.lock();
+            try {
+                entry.acknowledged = true;
+                Entry head;
+                long acknowledged = -1;
+                while ((head = unacknowledged.peekFirst()) != null && head.acknowledged) {
+                    unacknowledged.pollFirst();
+                    acknowledged = head.end;
+                }
+                if (acknowledged >= 0) {
+                    checkpoint.putLong(0, acknowledged);
+                    deleteSegmentsBefore(acknowledged / segmentSize);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void deleteSegmentsBefore(long index) {
+            Map<Long, MappedByteBuffer> obsolete = segments.headMap(index);
+            for (Iterator<Long> it = obsolete.keySet().iterator(); it.hasNext(); ) {
+                Path file = segmentPath(it.next());
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    log.warn("Unable to delete the outbox segment {}: {}", file, e.getMessage());
+                }
+                it.remove();
+            }
+        }
+
+        private MappedByteBuffer segment(long index) throws IOException {
+            MappedByteBuffer buffer = segments.get(index);
+            if (buffer == null) {
+                Path file = segmentPath(index);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    long size = channel.size();
+                    if (size != 0 && size != segmentSize) {
+                        throw new IllegalArgumentException(String.format("The outbox segment %s has size %d, " +
+                                "expected %d", file, size, segmentSize));
+                    }
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                }
+                segments.put(index, buffer);
+            }
+            return buffer;
+        }
+
+        private Path segmentPath(long index) {
+            return dir.resolve(String.format("%019d%s", index, SEGMENT_SUFFIX));
+        }
+
+        private int checksum(MappedByteBuffer buffer, int offset, int length) {
+            crc.reset();
+            crc.update(buffer.slice(offset, length));
+            return (int) crc.getValue();
+        }
+
+        static final class Entry {
+            final long position;
+            final long end;
+            final byte[] data;
+            boolean acknowledged;
+
+            Entry(long position, long end, byte[] data) {
+                this.position = position;
+                this.end = end;
+                this.data = data;
+            }
+        }
+    }
+
+    /**
+     * GCRA, состояние которого лежит в {@link RateLimitStore}. Чтобы не обращаться к хранилищу на каждый запрос,
+     * клиент бронирует там сразу leaseSize слотов и выдает их локально, соблюдая их время. Поэтому общий лимит
+     * соблюдается точно так же, как у одного GCRA, а неиспользованные слоты пропадают: прошедшие — при следующем
+     * обращении, остаток брони — если запросу не хватило слотов и пришлось бронировать новые.
+     */
+    public static class StoreRateLimiter implements RateLimiter {
+        private static final long EPOCH_OFFSET_NANOS =
+                TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+        private final RateLimitStore store;
+        private final String key;
+        private final int burst;
+        private final int leaseSize;
+        private final long emissionIntervalNanos;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long leasedArrival;
+        private int leased;
+
+        public StoreRateLimiter(RateLimitStore store, String key, int limit, long intervalNanos, int burst,
+                                int leaseSize) {
+            this.store = store;
+            this.key = key;
+            this.burst = burst;
+            this.leaseSize = leaseSize;
+            this.emissionIntervalNanos = ceilDiv(intervalNanos, limit);
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, false);
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            return acquire(nowNanos, permits, true);
+        }
+
+        @Override
+        public boolean supportsReservation() {
+            return true;
+        }
+
+        private long acquire(long nowNanos, int permits, boolean reserve) {
+            checkPermits(permits, burst);
+            long now = nowNanos + EPOCH_OFFSET_NANOS;
+            lock.lock();
+            try {
+                if (leased > 0 && leasedArrival <= now) {
+                    long expired = Math.min(leased, (now - leasedArrival) / emissionIntervalNanos + 1);
+                    leased -= (int) expired;
+                    leasedArrival += expired * emissionIntervalNanos;
+                }
+                if (leased < permits) {
+                    int size = Math.max(leaseSize, permits);
+                    leasedArrival = store.lease(key, now, size, emissionIntervalNanos) + emissionIntervalNanos;
+                    leased = size;
+                }
+                long waitNanos = leasedArrival + (permits - 1) * emissionIntervalNanos
+                        - burst * emissionIntervalNanos - now;
+                if (waitNanos > 0 && !reserve) {
+                    return waitNanos;
+                }
+                leasedArrival += permits * emissionIntervalNanos;
+                leased -= permits;
+                return Math.max(0, waitNanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Оценка: локально забронированные слоты, время которых наступило, плюс свободное место в хранилище.
+         */
+        @Override
+        public int availablePermits(long nowNanos) {
+            long now = nowNanos + EPOCH_OFFSET_NANOS;
+            long toleranceNanos = burst * emissionIntervalNanos;
+            long local;
+            lock.lock();
+            try {
+                local = leased == 0 || leasedArrival - toleranceNanos > now ? 0
+                        : Math.min(leased, (now + toleranceNanos - Math.max(leasedArrival, now)) / emissionIntervalNanos + 1);
+            } finally {
+                lock.unlock();
+            }
+            long arrival = store.get(key);
+            long shared = (now + toleranceNanos - Math.max(arrival, now)) / emissionIntervalNanos;
+            return (int) Math.max(0, Math.min(burst, local + Math.max(0, shared)));
+        }
+
+        @Override
+        public int capacity() {
+            return burst;
+        }
+    }
+
+    public enum Scope {
+        /**
+         * Состояние лимита принадлежит экземпляру CrptApi.
+         */
+        INSTANCE,
+        /**
+         * Состояние лимита общее для всех экземпляров JVM с одинаковыми стратегией, лимитом, интервалом и burst.
+         */
+        SHARED
+    }
+
+    /**
+     * Ключ, по которому выделяется отдельный лимит. Лимиты разных ключей независимы.
+     */
+    @FunctionalInterface
+    public interface LimitKey {
+        LimitKey NONE = (document, authToken) -> "";
+        LimitKey AUTH_TOKEN = (document, authToken) -> authToken;
+        LimitKey PARTICIPANT_INN = (document, authToken) -> document.getParticipantInn();
+
+        String of(Document document, String authToken);
+    }
+
+    /**
+     * Реестр независимых лимитов по ключам. Ключ, к которому не обращались дольше idleTimeout,
+     * удаляется при очередном обходе, который выполняет один из вызывающих потоков не чаще раза в sweepInterval.
+     */
+    public static class RateLimiterRegistry {
+        private final ConcurrentHashMap<String, KeyedRateLimiter> limiters = new ConcurrentHashMap<>();
+        private final long sweepIntervalNanos;
+        private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+        public RateLimiterRegistry(long sweepIntervalNanos) {
+            this.sweepIntervalNanos = sweepIntervalNanos;
+        }
+
+        public RateLimiter limiter(String key, long nowNanos, long idleTimeoutNanos,
+                                   Function<String, RateLimiter> factory) {
+            sweepIfDue(nowNanos);
+            KeyedRateLimiter limiter = limiters.get(key);
+            if (limiter != null) {
+                limiter.touch(nowNanos);
+                // Обход мог удалить ключ до touch — тогда ниже создается новый
+                if (limiters.get(key) == limiter) {
+                    return limiter;
+                }
+            }
+            return limiters.compute(key, (k, current) -> {
+                KeyedRateLimiter result = current != null
+                        ? current
+                        : new KeyedRateLimiter(factory.apply(k), idleTimeoutNanos, nowNanos);
+                result.touch(nowNanos);
+                return result;
+            });
+        }
+
+        public int size() {
+            return limiters.size();
+        }
+
+        private void sweepIfDue(long nowNanos) {
+            long last = lastSweep.get();
+            if (nowNanos - last < sweepIntervalNanos || !lastSweep.compareAndSet(last, nowNanos)) {
+                return;
+            }
+            for (String key : limiters.keySet()) {
+                limiters.computeIfPresent(key, (k, limiter) -> limiter.isIdle(nowNanos) ? null : limiter);
+            }
+        }
+    }
+
+    private static class KeyedRateLimiter implements RateLimiter {
+        private final RateLimiter delegate;
+        private final long idleTimeoutNanos;
+        private volatile long lastUse;
+
+        KeyedRateLimiter(RateLimiter delegate, long idleTimeoutNanos, long nowNanos) {
+            this.delegate = delegate;
+            this.idleTimeoutNanos = idleTimeoutNanos;
+            this.lastUse = nowNanos;
+        }
+
+        void touch(long nowNanos) {
+            if (nowNanos - lastUse > 0) {
+                lastUse = nowNanos;
+            }
+        }
+
+        boolean isIdle(long nowNanos) {
+            return nowNanos - lastUse > idleTimeoutNanos;
+        }
+
+        @Override
+        public long tryAcquire(long nowNanos, int permits) {
+            return delegate.tryAcquire(nowNanos, permits);
+        }
+
+        @Override
+        public long reserve(long nowNanos, int permits) {
+            long waitNanos = delegate.reserve(nowNanos, permits);
+            touch(nowNanos + waitNanos);
+            return waitNanos;
+        }
+
+        @Override
+        public boolean supportsReservation() {
+            return delegate.supportsReservation();
+        }
+
+        @Override
+        public int availablePermits(long nowNanos) {
+            return delegate.availablePermits(nowNanos);
+        }
+
+        @Override
+        public int capacity() {
+            return delegate.capacity();
+        }
+
+        @Override
+        public void onResponse(int statusCode, long latencyNanos) {
+            delegate.onResponse(statusCode, latencyNanos);
+        }
+    }
+
+    private static void checkPermits(int permits, int capacity) {
+        if (permits <= 0 || permits > capacity) {
+            throw new IllegalArgumentException(String.format("The number of permits must be between 1 and %d. " +
+                    "But was received: %d", capacity, permits));
+        }
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return Math.max(1, (dividend + divisor - 1) / divisor);
+    }
+
+    /**
+     * Получатель метрик клиента. Методы вызываются в потоках отправителей и HTTP клиента, поэтому должны быть
+     * быстрыми и потокобезопасными. Отказ учитывается один раз на вызов (или пачку пакетной отправки), не получивший разрешение сразу: лимит исчерпан
+     * или у ключа уже есть ожидающие. Повторные проверки планировщиком, пока вызов стоит в очереди, отказами не считаются.
+     */
+    public interface Metrics {
+        Metrics NONE = new Metrics() {
+        };
+
+        /**
+         * @param waitNanos сколько вызывающий ждал разрешения (0 — выдано сразу)
+         */
+        default void permitGranted(long waitNanos) {
+        }
+
+        default void permitDenied() {
+        }
+
+        default void requestStarted() {
+        }
+
+        /**
+         * @param statusCode код ответа или синтетический код ошибки (500/502/503/504)
+         */
+        default void requestCompleted(int statusCode, long latencyNanos) {
+        }
+
+        /**
+         * @param statusCode код попытки, после которой запланирован повтор
+         */
+        default void retryScheduled(int statusCode) {
+        }
+
+        /**
+         * Адаптивный режим изменил лимит запросов за интервал.
+         */
+        default void limitChanged(double limit) {
+        }
+    }
+
+    /**
+     * Атрибуты JMX для {@link LongAdderMetrics}. Времена в миллисекундах.
+     */
+    public interface MetricsMXBean {
+        long getPermitsGranted();
+
+        long getPermitsDenied();
+
+        long getRetries();
+
+        long getInFlight();
+
+        double getEffectiveLimit();
+
+        double getPermitWaitMeanMillis();
+
+        double getPermitWaitP99Millis();
+
+        double getPermitWaitMaxMillis();
+
+        double getHttpLatencyMeanMillis();
+
+        double getHttpLatencyP50Millis();
+
+        double getHttpLatencyP99Millis();
+
+        double getHttpLatencyMaxMillis();
+
+        Map<Integer, Long> getStatusCounts();
+    }
+
+    /**
+     * Встроенная реализация без блокировок: счетчики на LongAdder, задержки — в {@link LatencyHistogram}.
+     * Запись не создает объектов, снимок ({@link #snapshot()}) читает счетчики без остановки записи,
+     * поэтому значения в нем согласованы лишь приблизительно.
+     */
+    public static class LongAdderMetrics implements Metrics, MetricsMXBean {
+        private static final int MAX_STATUS_CODE = 599;
+
+        private final LongAdder permitsGranted = new LongAdder();
+        private final LongAdder permitsDenied = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LatencyHistogram permitWait = new LatencyHistogram();
+        private final LatencyHistogram httpLatency = new LatencyHistogram();
+        private final LongAdder[] statusCounts = new LongAdder[MAX_STATUS_CODE + 1];
+        private volatile double effectiveLimit = Double.NaN;
+
+        public LongAdderMetrics() {
+            for (int i = 0; i < statusCounts.length; i++) {
+                statusCounts[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void permitGranted(long waitNanos) {
+            permitsGranted.increment();
+            permitWait.record(waitNanos);
+        }
+
+        @Override
+        public void permitDenied() {
+            permitsDenied.increment();
+        }
+
+        @Override
+        public void requestStarted() {
+            inFlight.increment();
+        }
+
+        /**
+         * Коды вне диапазона 0..599 учитываются как 0.
+         */
+        @Override
+        public void requestCompleted(int statusCode, long latencyNanos) {
+            inFlight.decrement();
+            httpLatency.record(latencyNanos);
+            statusCounts[statusCode >= 0 && statusCode <= MAX_STATUS_CODE ? statusCode : 0].increment();
+        }
+
+        @Override
+        public void retryScheduled(int statusCode) {
+            retries.increment();
+        }
+
+        /**
+         * Хранится последнее значение; при лимитах по ключам это лимит ключа, изменившегося последним.
+         */
+        @Override
+        public void limitChanged(double limit) {
+            effectiveLimit = limit;
+        }
+
+        public MetricsSnapshot snapshot() {
+            Map<Integer, Long> statuses = new TreeMap<>();
+            for (int i = 0; i < statusCounts.length; i++) {
+                long count = statusCounts[i].sum();
+                if (count > 0) {
+                    statuses.put(i, count);
+                }
+            }
+            return new MetricsSnapshot(permitsGranted.sum(), permitsDenied.sum(), retries.sum(), inFlight.sum(), effectiveLimit,
+                    permitWait.snapshot(), httpLatency.snapshot(), statuses);
+        }
+
+        /**
+         * Регистрирует метрики в платформенном MBeanServer под именем com.example:type=CrptApi,name=&lt;name&gt;.
+         */
+        public ObjectName registerMBean(String name) {
+            try {
+                ObjectName objectName = new ObjectName("com.example:type=CrptApi,name=" + ObjectName.quote(name));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+                return objectName;
+            } catch (JMException e) {
+                throw new IllegalStateException("Unable to register metrics MBean '" + name + "'", e);
+            }
+        }
+
+        public void unregisterMBean(ObjectName objectName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                throw new IllegalStateException("Unable to unregister metrics MBean " + objectName, e);
+            }
+        }
+
+        @Override
+        public long getPermitsGranted() {
+            return permitsGranted.sum();
+        }
+
+        @Override
+        public long getPermitsDenied() {
+            return permitsDenied.sum();
+        }
+
+        @Override
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        @Override
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        /**
+         * NaN, пока адаптивный режим ни разу не менял лимит.
+         */
+        @Override
+        public double getEffectiveLimit() {
+            return effectiveLimit;
+        }
+
+        @Override
+        public double getPermitWaitMeanMillis() {
+            return toMillis(permitWait.snapshot().mean());
+        }
+
+        @Override
+        public double getPermitWaitP99Millis() {
+            return toMillis(permitWait.snapshot().percentile(99));
+        }
+
+        @Override
+        public double getPermitWaitMaxMillis() {
+            return toMillis(permitWait.snapshot().max());
+        }
+
+        @Override
+        public double getHttpLatencyMeanMillis() {
+            return toMillis(httpLatency.snapshot().mean());
+        }
+
+        @Override
+        public double getHttpLatencyP50Millis() {
+            return toMillis(httpLatency.snapshot().percentile(50));
+        }
+
+        @Override
+        public double getHttpLatencyP99Millis() {
+            return toMillis(httpLatency.snapshot().percentile(99));
+        }
+
+        @Override
+        public double getHttpLatencyMaxMillis() {
+            return toMillis(httpLatency.snapshot().max());
+        }
+
+        @Override
+        public Map<Integer, Long> getStatusCounts() {
+            return snapshot().statusCounts();
+        }
+
+        private static double toMillis(double nanos) {
+            return nanos / 1_000_000;
+        }
+    }
+
+    public record MetricsSnapshot(long permitsGranted, long permitsDenied, long retries, long inFlight, double effectiveLimit,
+                                  HistogramSnapshot permitWait, HistogramSnapshot httpLatency,
+                                  Map<Integer, Long> statusCounts) {
+    }
+
+    /**
+     * Гистограмма в духе HdrHistogram: корзины по степеням двойки, каждая поделена на SUB_BUCKETS линейных
+     * частей, так что относительная погрешность не больше 1 / SUB_BUCKETS на всем диапазоне long.
+     * Индекс корзины считается по числу ведущих нулей, без циклов и ветвлений по диапазонам.
+     */
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final LongAdder[] buckets = new LongAdder[(Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long valueNanos) {
+            long value = Math.max(0, valueNanos);
+            buckets[bucketIndex(value)].increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            return new HistogramSnapshot(counts, count, total.sum(), max.get());
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * Наибольшее значение, попадающее в корзину.
+         */
+        static long highestValueIn(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private HistogramSnapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /**
+         * @return верхняя граница корзины, в которую попал перцентиль (но не больше максимума), 0 для пустой
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(LatencyHistogram.highestValueIn(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.0f, p50=%d, p99=%d, max=%d (ns)",
+                    count, mean(), percentile(50), percentile(99), max);
+        }
+    }
+
+    /**
+     * События клиента. Для каждого типа указано, что передается в code и nanos.
+     */
+    public enum EventType {
+        /**
+         * Вызывающий поток встает в очередь ожидающих. nanos — оценка ожидания по лимиту
+         * (0, если поток встал за уже ожидающими).
+         */
+        PERMIT_WAIT,
+        /**
+         * Разрешение не получено до дедлайна, запрос не отправлен. nanos — сколько вызов ждал.
+         */
+        PERMIT_TIMEOUT,
+        /**
+         * Ожидание разрешения прервано, запрос не отправлен. nanos — сколько оставалось ждать.
+         */
+        PERMIT_INTERRUPTED,
+        /**
+         * Асинхронные запросы ждут разрешения в очереди ключа. code — длина очереди, nanos — время до следующей попытки.
+         */
+        REQUESTS_QUEUED,
+        /**
+         * Получен ответ. code — код статуса, nanos — задержка HTTP.
+         */
+        RESPONSE,
+        /**
+         * Запрос завершился ошибкой. code — синтетический код (500/502/503/504), nanos — время до ошибки.
+         */
+        REQUEST_FAILED,
+        /**
+         * Запланирован повтор. code — код неудачной попытки, nanos — пауза перед повтором.
+         */
+        RETRY_SCHEDULED,
+        /**
+         * Адаптивный режим изменил лимит. code — новый лимит, округленный вниз.
+         */
+        LIMIT_CHANGED
+    }
+
+    /**
+     * Получатель событий клиента. Вызывается прямо в потоке отправителя (в т.ч. в потоке планировщика и HTTP клиента),
+     * поэтому не должен блокироваться. Параметры примитивные, чтобы событие не требовало создания объекта.
+     */
+    @FunctionalInterface
+    public interface EventSink {
+        EventSink NONE = (type, key, code, nanos, error) -> {
+        };
+
+        /**
+         * @param key   ключ лимита, если событие к нему относится, иначе null
+         * @param error причина ошибки для REQUEST_FAILED, иначе null
+         */
+        void onEvent(EventType type, String key, int code, long nanos, Throwable error);
+    }
+
+    /**
+     * Пишет события в slf4j. Сам по себе синхронный, по умолчанию работает за {@link AsyncEventSink}.
+     */
+    public static class LoggingEventSink implements EventSink {
+        @Override
+        public void onEvent(EventType type, String key, int code, long nanos, Throwable error) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            switch (type) {
+                case PERMIT_WAIT:
+                    long waitTimeMs = Math.max(1, millis);
+                    long totalSeconds = TimeUnit.MILLISECONDS.toSeconds(waitTimeMs);
+                    log.info("Please wait for {} min {} sec {} ms (total ms: {})",
+                            (totalSeconds / 60), (totalSeconds % 60), (waitTimeMs % 1000), waitTimeMs);
+                    break;
+                case PERMIT_INTERRUPTED:
+                    log.error("Waiting for a permit was interrupted");
+                    break;
+                case PERMIT_TIMEOUT:
+                    log.warn("No permit for key '{}' within the deadline, waited {} ms", key, millis);
+                    break;
+                case REQUESTS_QUEUED:
+                    log.debug("{} requests are queued for key '{}', next attempt in {} ms", code, key, millis);
+                    break;
+                case RESPONSE:
+                    if (code < 200 || code >= 300) {
+                        log.error("Request failed with status code {} in {} ms", code, millis);
+                    } else {
+                        log.debug("Request successful with status code {} in {} ms", code, millis);
+                    }
+                    break;
+                case REQUEST_FAILED:
+                    if (error instanceof HttpTimeoutException) {
+                        log.error("Request timed out: {}", error.getMessage());
+                    } else if (error instanceof ConnectException) {
+                        log.error("Connection failure: {}", error.getMessage());
+                    } else if (error instanceof IOException) {
+                        log.error("I/O Exception: {}", error.getMessage());
+                    } else if (error instanceof InterruptedException) {
+                        log.error("Request interrupted: {}", error.getMessage());
+                    } else {
+                        log.error("An error has occurred: {}", error != null ? error.getMessage() : null, error);
+                    }
+                    break;
+                case RETRY_SCHEDULED:
+                    log.warn("Request failed with status code {}, retrying in {} ms", code, millis);
+                    break;
+                case LIMIT_CHANGED:
+                    log.info("The adaptive request limit changed to {}", code);
+                    break;
+                default:
+                    log.debug("{} key={} code={} nanos={}", type, key, code, nanos);
+            }
+        }
+    }
+
+    /**
+     * Кольцевой буфер заранее созданных ячеек между отправителями и одним потоком-потребителем, который передает
+     * события в delegate. Отправитель занимает ячейку одним CAS и никогда не ждет: при переполнении событие
+     * отбрасывается и учитывается в {@link #dropped()}. Ячейка публикуется записью ее номера (volatile),
+     * потребитель освобождает ее, сдвигая consumed.
+     */
+    public static class AsyncEventSink implements EventSink, AutoCloseable {
+        private final EventSink delegate;
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong claimed = new AtomicLong();
+        private final LongAdder dropped = new LongAdder();
+        private final Thread consumer;
+        private volatile long consumed;
+        private volatile boolean consumerWaiting;
+        private volatile boolean closed;
+
+        /**
+         * @param capacity размер буфера, округляется вверх до степени двойки
+         */
+        public AsyncEventSink(EventSink delegate, int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("The capacity must be between 1 and 2^30. But was received: " + capacity);
+            }
+            int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+            this.delegate = delegate;
+            this.slots = new Slot[size];
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Slot();
+            }
+            this.consumer = new Thread(this::consume, "crpt-api-events");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        @Override
+        public void onEvent(EventType type, String key, int code, long nanos, Throwable error) {
+            long sequence;
+            do {
+                sequence = claimed.get();
+                if (closed || sequence - consumed >= slots.length) {
+                    dropped.increment();
+                    return;
+                }
+            } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+            Slot slot = slots[(int) sequence & mask];
+            slot.type = type;
+            slot.key = key;
+            slot.code = code;
+            slot.nanos = nanos;
+            slot.error = error;
+            slot.sequence = sequence;
+            if (consumerWaiting) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        public long dropped() {
+            return dropped.sum();
+        }
+
+        /**
+         * Передает delegate уже принятые события и останавливает поток-потребитель. Новые события отбрасываются.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            LockSupport.unpark(consumer);
+            try {
+                consumer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void consume() {
+            long next = 0;
+            while (true) {
+                Slot slot = slots[(int) next & mask];
+                if (slot.sequence == next) {
+                    EventType type = slot.type;
+                    String key = slot.key;
+                    int code = slot.code;
+                    long nanos = slot.nanos;
+                    Throwable error = slot.error;
+                    slot.key = null;
+                    slot.error = null;
+                    consumed = ++next;
+                    try {
+                        delegate.onEvent(type, key, code, nanos, error);
+                    } catch (RuntimeException e) {
+                        log.warn("Event sink failed on {}: {}", type, e.toString());
+                    }
+                } else if (closed && next == claimed.get()) {
+                    return;
+                } else {
+                    consumerWaiting = true;
+                    // Повторная проверка после consumerWaiting: иначе публикация между ними могла бы остаться без unpark.
+                    // Поэтому ждать можно без таймаута, поток спит, пока событий нет
+                    if (slot.sequence != next && !closed) {
+                        LockSupport.park(this);
+                    }
+                    consumerWaiting = false;
+                }
+            }
+        }
+
+        private static final class Slot {
+            private volatile long sequence = -1;
+            private EventType type;
+            private String key;
+            private int code;
+            private long nanos;
+            private Throwable error;
+        }
+    }
+
+    /**
+     * Экспоненциальная пауза с джиттером: перед повтором номер attempt (с нуля) ждем случайное время
+     * в [backoff / 2, backoff], где backoff = min(maxBackoff, initialBackoff * 2^attempt).
+     * Если сервер прислал Retry-After, ждем не меньше него, а если он больше maxRetryAfter — не повторяем.
+     * Пауза лишь откладывает попытку: разрешение у лимита повтор получает так же, как новый запрос.
+     */
+    @Value
+    @Builder
+    public static class RetryPolicy {
+        public static final RetryPolicy NONE = RetryPolicy.builder().maxRetries(0).build();
+
+        @Builder.Default
+        int maxRetries = 3;
+        @Builder.Default
+        Duration initialBackoff = Duration.ofMillis(200);
+        @Builder.Default
+        Duration maxBackoff = Duration.ofSeconds(30);
+        @Builder.Default
+        Duration maxRetryAfter = Duration.ofMinutes(2);
+        /**
+         * 429 и 503 от сервера, а также синтетические 502 (ошибка соединения) и 504 (таймаут).
+         */
+        @Builder.Default
+        Set<Integer> retryableStatuses = Set.of(429, 502, 503, 504);
+
+        public boolean isRetryable(int statusCode) {
+            return maxRetries > 0 && retryableStatuses.contains(statusCode);
+        }
+
+        /**
+         * @return пауза перед повтором в наносекундах или -1, если повторять не нужно
+         */
+        public long delayNanos(int attempt, int statusCode, long retryAfterNanos) {
+            if (attempt >= maxRetries || !isRetryable(statusCode)) {
+                return -1;
+            }
+            if (retryAfterNanos > maxRetryAfter.toNanos()) {
+                return -1;
+            }
+            long maxBackoffNanos = maxBackoff.toNanos();
+            long backoffNanos = attempt >= Long.numberOfLeadingZeros(initialBackoff.toNanos()) - 1
+                    ? maxBackoffNanos
+                    : Math.min(maxBackoffNanos, initialBackoff.toNanos() << attempt);
+            long delayNanos = backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+            return Math.max(delayNanos, retryAfterNanos);
+        }
+    }
+
+    public static class ClientBuilder {
+        private TimeUnit timeUnit = TimeUnit.SECONDS;
+        private int timeValue = 1;
+        private int requestLimit;
+        private Strategy strategy = Strategy.FIXED_WINDOW;
+        private int burst;
+        private int maxRequestLimit;
+        private RateLimitStore store;
+        private int leaseSize;
+        private RateLimiter rateLimiter;
+        private Scope scope = Scope.INSTANCE;
+        private LimitKey limitKey = LimitKey.NONE;
+        private Duration idleKeyTimeout = Duration.ofMinutes(10);
+        private LimitKey flowKey = LimitKey.NONE;
+        private ToIntFunction<String> flowWeight = flow -> 1;
+        private ExecutorService executor;
+        private HttpClient httpClient;
+        private HttpClient.Version httpVersion;
+        private Duration connectTimeout;
+        private Executor httpExecutor;
+        private Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        private String url;
+        private Supplier<String> authToken;
+        private Metrics metrics = Metrics.NONE;
+        private EventSink events;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private ResultCache resultCache;
+        private Outbox outbox;
+        private BiConsumer<Document, Integer> outboxListener;
+
+        private ClientBuilder() {
+        }
+
+        public ClientBuilder interval(TimeUnit timeUnit, int timeValue) {
+            this.timeUnit = timeUnit;
+            this.timeValue = timeValue;
+            return this;
+        }
+
+        public ClientBuilder requestLimit(int requestLimit) {
+            this.requestLimit = requestLimit;
+            return this;
+        }
+
+        public ClientBuilder strategy(Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * Допустимый всплеск для TOKEN_BUCKET и GCRA. 0 — значение по умолчанию для стратегии.
+         */
+        public ClientBuilder burst(int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * Адаптивный режим ({@link AdaptiveRateLimiter}): requestLimit — начальный лимит, ceiling — жесткий потолок.
+         * Всегда использует GCRA, поэтому strategy игнорируется, burst по умолчанию 1.
+         */
+        public ClientBuilder adaptive(int ceiling) {
+            if (ceiling <= 0) {
+                throw new IllegalArgumentException("The adaptive ceiling must be positive. But was received: " + ceiling);
+            }
+            this.maxRequestLimit = ceiling;
+            return this;
+        }
+
+        /**
+         * Лимит, общий для всех клиентов с тем же хранилищем и настройками (в т.ч. в других процессах),
+         * см. {@link StoreRateLimiter}. Всегда использует GCRA, strategy игнорируется, burst по умолчанию 1.
+         * Слоты бронируются пачками по requestLimit / 10.
+         */
+        public ClientBuilder store(RateLimitStore store) {
+            return store(store, 0);
+        }
+
+        /**
+         * @param leaseSize сколько слотов бронировать за одно обращение к хранилищу (0 — requestLimit / 10)
+         */
+        public ClientBuilder store(RateLimitStore store, int leaseSize) {
+            if (leaseSize < 0) {
+                throw new IllegalArgumentException("The leaseSize must not be negative. But was received: " + leaseSize);
+            }
+            this.store = store;
+            this.leaseSize = leaseSize;
+            return this;
+        }
+
+        /**
+         * Собственная реализация стратегии. Если задана, strategy, burst и adaptive игнорируются.
+         * {@link CrptApi#reserve(int)} работает, только если она поддерживает бронирование ({@link RateLimiter#supportsReservation()}),
+         * а {@link CrptApi#availablePermits()} без собственной оценки возвращает 0.
+         */
+        public ClientBuilder rateLimiter(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        public ClientBuilder scope(Scope scope) {
+            this.scope = scope;
+            return this;
+        }
+
+        public ClientBuilder limitKey(LimitKey limitKey) {
+            this.limitKey = limitKey;
+            return this;
+        }
+
+        /**
+         * Справедливое разделение лимита между потоками внутри одного класса приоритета: ожидающие группируются
+         * по flowKey (например, {@link LimitKey#PARTICIPANT_INN}) и получают разрешения по очереди, так что один
+         * поток с тысячами запросов не задерживает остальных. Лимит при этом общий — см. {@link #limitKey}.
+         */
+        public ClientBuilder fairness(LimitKey flowKey) {
+            return fairness(flowKey, flow -> 1);
+        }
+
+        /**
+         * @param weight сколько разрешений поток получает за круг (не меньше 1)
+         */
+        public ClientBuilder fairness(LimitKey flowKey, ToIntFunction<String> weight) {
+            this.flowKey = flowKey;
+            this.flowWeight = weight;
+            return this;
+        }
+
+        /**
+         * Через сколько после последнего обращения лимит ключа удаляется. Не меньше интервала лимита.
+         */
+        public ClientBuilder idleKeyTimeout(Duration idleKeyTimeout) {
+            this.idleKeyTimeout = idleKeyTimeout;
+            return this;
+        }
+
+        /**
+         * Executor для {@link CrptApi#submit(Document, String)}. Его жизненным циклом управляет вызывающий.
+         */
+        public ClientBuilder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Каждая отправка через submit выполняется в собственном виртуальном потоке (Java 21+).
+         */
+        public ClientBuilder virtualThreads() {
+            this.executor = newVirtualThreadExecutor();
+            return this;
+        }
+
+        /**
+         * Готовый HttpClient, например общий для нескольких клиентов приложения. Его настройками и жизненным
+         * циклом управляет вызывающий, поэтому httpVersion, connectTimeout и httpExecutor с ним не сочетаются.
+         * Без этой настройки и без них все экземпляры CrptApi используют один общий клиент.
+         */
+        public ClientBuilder httpClient(HttpClient httpClient) {
+            this.httpClient = httpClient;
+            return this;
+        }
+
+        /**
+         * По умолчанию HTTP/2: запросы к одному хосту мультиплексируются в одном соединении,
+         * при отказе сервера клиент сам переходит на HTTP/1.1.
+         */
+        public ClientBuilder httpVersion(HttpClient.Version httpVersion) {
+            this.httpVersion = httpVersion;
+            return this;
+        }
+
+        /**
+         * Таймаут установки соединения, по умолчанию 5 секунд.
+         */
+        public ClientBuilder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Executor, в котором HttpClient выполняет асинхронные задачи (по умолчанию собственный пул клиента).
+         * Его жизненным циклом управляет вызывающий.
+         */
+        public ClientBuilder httpExecutor(Executor httpExecutor) {
+            this.httpExecutor = httpExecutor;
+            return this;
+        }
+
+        /**
+         * Таймаут одного HTTP запроса до получения заголовков ответа, по умолчанию 10 секунд.
+         * По истечении запрос завершается кодом 504.
+         */
+        public ClientBuilder requestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        /**
+         * Адрес метода создания документа. По умолчанию {@link Config#getUrl()} на момент создания клиента.
+         */
+        public ClientBuilder url(String url) {
+            this.url = url;
+            return this;
+        }
+
+        /**
+         * Источник токена авторизации, опрашивается на каждый запрос, поэтому токен можно менять без пересоздания
+         * клиента. Должен быть дешевым и неблокирующим (например, чтение volatile поля).
+         * По умолчанию {@link Config#getAuthToken()}.
+         */
+        public ClientBuilder authToken(Supplier<String> authToken) {
+            this.authToken = authToken;
+            return this;
+        }
+
+        /**
+         * Получатель метрик, например {@link LongAdderMetrics}. Один объект можно передать нескольким клиентам.
+         */
+        public ClientBuilder metrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Получатель событий клиента. Вызывается в потоке отправителя, поэтому медленный получатель лучше обернуть
+         * в {@link AsyncEventSink}. По умолчанию события пишутся в лог через общий AsyncEventSink.
+         */
+        public ClientBuilder eventSink(EventSink events) {
+            this.events = events;
+            return this;
+        }
+
+        /**
+         * Политика повторов. По умолчанию {@link RetryPolicy#NONE} — повторов нет.
+         */
+        public ClientBuilder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Дедупликация для post, tryPost, submit и postAsync. postAll и postDurable кэш не используют.
+         * Один кэш можно передать нескольким клиентам с одним адресом и токеном.
+         */
+        public ClientBuilder resultCache(ResultCache resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        /**
+         * Журнал для {@link CrptApi#postDurable(Document, String)}. Клиент начинает разбирать его сразу после создания,
+         * в т.ч. записи от прошлого запуска. Журналом владеет вызывающий и закрывает его после клиента;
+         * один журнал — один клиент.
+         *
+         * @param listener получает окончательный код каждого документа журнала
+         */
+        public ClientBuilder outbox(Outbox outbox, BiConsumer<Document, Integer> listener) {
+            this.outbox = outbox;
+            this.outboxListener = listener;
+            return this;
+        }
+
+        public CrptApi build() {
+            return new CrptApi(this);
+        }
+    }
+
+
+    @Value
+    @Builder(toBuilder = true)
     @NoArgsConstructor(force = true)
     @AllArgsConstructor
     public static class Document {
@@ -208,14 +4076,18 @@ public class CrptApi {
         String uituCode;
     }
 
+    /**
+     * Значения по умолчанию для {@link ClientBuilder#url(String)} и {@link ClientBuilder#authToken(Supplier)}.
+     * Токен читается на каждый запрос, адрес — при создании клиента.
+     */
     @Getter
     public enum Config {
         INSTANCE;
 
         @Setter
-        private String url = "https://ismp.crpt.ru/api/v3/lk/documents/create";
+        private volatile String url = "https://ismp.crpt.ru/api/v3/lk/documents/create";
 
         @Setter
-        private String authToken = "Bearer YOUR_TOKEN";
+        private volatile String authToken = "Bearer YOUR_TOKEN";
     }
 }
@@ -15,6 +15,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Оставил этот класс, чтобы из него запускать тестирование класса CrptApi
@@ -24,6 +26,9 @@ import java.util.Scanner;
 public class Main {
     private static final String TEXT_DEFAULT_PARAMS = "параметры по умолчанию";
     private static final String TEXT_SPECIFIED_PARAMS = "указать свои параметры";
+    private static final String TEXT_VIRTUAL_THREADS = "виртуальные потоки, Java 21+";
+    private static final int VIRTUAL_THREADS_NUMBER = 10_000;
+    private static final int VIRTUAL_THREADS_REQUEST_LIMIT = 1000;
     private static final List<String> requestUrls = new ArrayList<>(Arrays.asList(
             "https://ismp.crpt.ru/api/v3/lk/documents/create",
             "http://example.com/api"
@@ -47,8 +52,9 @@ public class Main {
         int threadsNumber = menuResult.threadsNumber;
         String requestUrl = menuResult.url;
 
-        System.out.printf("\nТест класса %s (%s)\n",
-                CrptApi.class.getSimpleName(), (menuResult.choice == 1 ? TEXT_DEFAULT_PARAMS : TEXT_SPECIFIED_PARAMS));
+        System.out.printf("\nТест класса %s (%s)\n", CrptApi.class.getSimpleName(),
+                (menuResult.choice == 1 ? TEXT_DEFAULT_PARAMS
+                        : menuResult.choice == 2 ? TEXT_SPECIFIED_PARAMS : TEXT_VIRTUAL_THREADS));
 
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
         LocalDateTime dateTime = LocalDateTime.of(2020, 1, 23, 0, 0);
@@ -113,6 +119,12 @@ public class Main {
         System.out.println("Интервал (сек): " + requestIntervalSec + "\n");
         System.out.println("URL: " + requestUrl + "\n");
 
+        if (menuResult.choice == 3) {
+            runOnVirtualThreads(client, document, signature, threadsNumber);
+            System.out.println("\nDone");
+            return;
+        }
+
         Thread[] threads = new Thread[threadsNumber];
         for (int i = 0; i < threadsNumber; i++) {
             threads[i] = new Thread(() -> {
@@ -134,6 +146,29 @@ public class Main {
         System.out.println("\nDone");
     }
 
+    private static void runOnVirtualThreads(CrptApi client, CrptApi.Document document, String signature,
+                                            int callersNumber) {
+        ExecutorService executor;
+        try {
+            executor = CrptApi.newVirtualThreadExecutor();
+        } catch (UnsupportedOperationException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        for (int i = 0; i < callersNumber; i++) {
+            executor.execute(() -> client.post(document, signature));
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        }
+        log.debug("All {} virtual threads have completed execution", callersNumber);
+    }
+
     private static MenuResult getMenuResult(Scanner scanner, int requestIntervalSec, int requestLimit, int threadsNumber,
                                             String url) {
         final String RESET = "\033[0m";
@@ -151,13 +186,16 @@ public class Main {
             System.out.printf("\t- %-18s: %d\n", "интервал (сек)", requestIntervalSec);
             System.out.printf("\t- %-18s: %s\n", "URL", url);
             System.out.println("2. Тест класса CrptApi (" + TEXT_SPECIFIED_PARAMS + ")");
+            System.out.println("3. Тест класса CrptApi (" + TEXT_VIRTUAL_THREADS + ")");
+            System.out.printf("\t- %-18s: %d\n", "количество потоков", VIRTUAL_THREADS_NUMBER);
+            System.out.printf("\t- %-18s: %d\n", "лимит запросов", VIRTUAL_THREADS_REQUEST_LIMIT);
             System.out.println("0. Выход");
             System.out.print("Ваш выбор (введите номер): ");
 
             if (scanner.hasNextInt()) {
                 choice = scanner.nextInt();
-                if (choice < 0 || choice > 2) {
-                    System.out.println(RED + textIncorrectChoice + " от 0 до 2.");
+                if (choice < 0 || choice > 3) {
+                    System.out.println(RED + textIncorrectChoice + " от 0 до 3.");
                 } else {
                     break;
                 }
@@ -167,7 +205,12 @@ public class Main {
             }
         }
 
-        if (choice != 1) {
+        if (choice == 3) {
+            threadsNumber = VIRTUAL_THREADS_NUMBER;
+            requestLimit = VIRTUAL_THREADS_REQUEST_LIMIT;
+        }
+
+        if (choice == 2) {
             while (choice != 0) {
                 final String textForFilledUrlList = "Ваш выбор (введите номер или свой адрес URL): ";
                 final String textForEmptyUrlList = "Укажите URL для отправки запросов: ";